@@ -0,0 +1,895 @@
+package nachos.filesys;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.StringTokenizer;
+import java.util.TreeMap;
+
+/**
+ * A file system on the machine's disk that stores each file as a short list
+ * of extents, runs of consecutive blocks, instead of a pointer per block. A
+ * file that is read sequentially is read with a few large transfers, and
+ * finding a block needs no indirect blocks.
+ * <p>
+ * <p>
+ * The disk is laid out as a superblock, a free block bitmap, a table of
+ * fixed-size inodes, the directory, and the data blocks. Free space is kept
+ * in memory as a map of free extents. A growing file is extended in place
+ * when the blocks after its last extent are free, and otherwise gets the
+ * smallest free extent that fits, so that large files stay contiguous. Files
+ * grow by at least <tt>ExtentFileSystem.minExtentBlocks</tt> blocks at a
+ * time; blocks beyond the end of a file are given back when it is closed.
+ * <p>
+ * <p>
+ * The directory is a hash table of <tt>ExtentFileSystem.dirBuckets</tt>
+ * buckets, one block each, so a lookup usually reads a single block. A name
+ * that does not fit in its bucket goes in the next bucket with room, and the
+ * full bucket is marked so that lookups keep probing past it.
+ * <p>
+ * <p>
+ * Reads go through a read-ahead buffer of
+ * <tt>ExtentFileSystem.readAheadBlocks</tt> blocks per file, filled with one
+ * transfer from within an extent. Data writes go straight to the disk.
+ * <p>
+ * <p>
+ * Updates to the bitmap, the inodes and the directory go through a
+ * {@link Journal} of <tt>ExtentFileSystem.journalBlocks</tt> blocks between
+ * the directory and the data. A thread commits the running transaction every
+ * <tt>ExtentFileSystem.commitInterval</tt> ticks, so an update is durable
+ * within that time, and a halt at any point leaves the file system as it was
+ * after some commit. Blocks freed by a transaction are not reused until it
+ * commits, so a file that a crash brings back never holds another file's
+ * data. Setting <tt>ExtentFileSystem.journalBlocks</tt> to 0 writes metadata
+ * in place instead.
+ * <p>
+ * <p>
+ * To use this file system, enable <tt>Machine.disk</tt> and set
+ * <tt>ThreadedKernel.fileSystem</tt> to
+ * <tt>nachos.filesys.ExtentFileSystem</tt>. The files named in
+ * <tt>ExtentFileSystem.import</tt>, a comma-separated list, are copied from
+ * the stub file system when they are missing.
+ */
+public class ExtentFileSystem implements SyncableFileSystem {
+    /**
+     * Allocate a new extent file system. The disk is mounted when the file
+     * system is first used, since that needs a running thread.
+     */
+    public ExtentFileSystem() {
+        Lib.assertTrue(ThreadedKernel.disk != null,
+                "ExtentFileSystem requires Machine.disk");
+
+        disk = ThreadedKernel.disk;
+
+        int sectorSize = disk.getDisk().getSectorSize();
+        blockSize = Config.getInteger("ExtentFileSystem.blockSize", 512);
+        maxFiles = Config.getInteger("ExtentFileSystem.maxFiles", 64);
+        numBuckets = Config.getInteger("ExtentFileSystem.dirBuckets", 32);
+        minExtentBlocks = Config.getInteger("ExtentFileSystem.minExtentBlocks", 8);
+        readAheadBlocks = Config.getInteger("ExtentFileSystem.readAheadBlocks", 8);
+        journalBlocks = Config.getInteger("ExtentFileSystem.journalBlocks", 64);
+        commitInterval = Config.getInteger("ExtentFileSystem.commitInterval", 20000);
+        Lib.assertTrue(blockSize % sectorSize == 0 && blockSize >= inodeSize);
+        Lib.assertTrue(maxFiles > 0 && numBuckets > 0 && minExtentBlocks > 0
+                && readAheadBlocks > 0 && commitInterval > 0);
+        Lib.assertTrue(journalBlocks == 0 || journalBlocks >= 16,
+                "ExtentFileSystem.journalBlocks must be 0 or at least 16");
+
+        sectorsPerBlock = blockSize / sectorSize;
+        numBlocks = disk.getDisk().getNumSectors() / sectorsPerBlock;
+
+        bitmapStart = 1;
+        bitmapBlocks = Lib.divRoundUp(numBlocks, blockSize * 8);
+        bitmapDirty = new boolean[bitmapBlocks];
+        inodeStart = bitmapStart + bitmapBlocks;
+        inodeBlocks = Lib.divRoundUp(maxFiles * inodeSize, blockSize);
+        directoryStart = inodeStart + inodeBlocks;
+        journalStart = directoryStart + numBuckets;
+        dataStart = journalStart + journalBlocks;
+        Lib.assertTrue(dataStart < numBlocks, "disk too small for ExtentFileSystem");
+
+        if (journalBlocks > 0)
+            journal = new Journal(disk, journalStart, journalBlocks, blockSize);
+
+        final int cacheBlocks = Config.getInteger("ExtentFileSystem.cacheBlocks", 32);
+        cache = new LinkedHashMap<Integer, byte[]>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<Integer, byte[]> eldest) {
+                return size() > cacheBlocks;
+            }
+        };
+    }
+
+    public OpenFile open(String name, boolean truncate) {
+        int nameLength = name.getBytes().length;
+        if (nameLength == 0 || nameLength > maxNameLength
+                || bucketHeaderLength + 6 + nameLength > blockSize)
+            return null;
+
+        lock.acquire();
+        mount();
+
+        Node node;
+        int inum = lookup(name);
+        if (inum == -1) {
+            inum = truncate ? allocateInode() : -1;
+            if (inum == -1 || !insert(name, inum)) {
+                lock.release();
+                return null;
+            }
+
+            node = new Node(inum);
+            nodes.put(inum, node);
+            inodeUsed[inum] = true;
+            writeInode(node);
+        } else {
+            node = loadNode(inum);
+            if (truncate && node.length > 0) {
+                node.length = 0;
+                node.dirty = true;
+                trim(node);
+                writeInode(node);
+                writeBitmap();
+            }
+        }
+
+        node.openCount++;
+        endOperation();
+        lock.release();
+
+        return new ExtentOpenFile(name, node);
+    }
+
+    public boolean remove(String name) {
+        lock.acquire();
+        mount();
+
+        int inum = lookup(name);
+        if (inum != -1) {
+            delete(name);
+
+            Node node = loadNode(inum);
+            node.unlinked = true;
+            if (node.openCount == 0)
+                freeNode(node);
+            endOperation();
+        }
+
+        lock.release();
+        return inum != -1;
+    }
+
+    /**
+     * Commit the running journal transaction, so that every update made so
+     * far survives a halt.
+     */
+    public void sync() {
+        lock.acquire();
+        mount();
+        commit();
+        if (journal != null)
+            Lib.debug(dbgExtent, journal.report());
+        lock.release();
+    }
+
+    private void mount() {
+        if (mounted)
+            return;
+        mounted = true;
+
+        bitmap = new byte[bitmapBlocks * blockSize];
+        inodeUsed = new boolean[maxFiles];
+
+        byte[] superblock = readBlocks(0, 1);
+        if (Config.getBoolean("ExtentFileSystem.format", false)
+                || Lib.bytesToInt(superblock, 0) != superMagic
+                || Lib.bytesToInt(superblock, 4) != blockSize
+                || Lib.bytesToInt(superblock, 8) != numBlocks
+                || Lib.bytesToInt(superblock, 12) != maxFiles
+                || Lib.bytesToInt(superblock, 16) != numBuckets
+                || Lib.bytesToInt(superblock, 20) != journalBlocks)
+            format();
+        else if (journal != null)
+            journal.replay();
+
+        System.arraycopy(readBlocks(bitmapStart, bitmapBlocks), 0, bitmap, 0,
+                bitmap.length);
+        for (int start = dataStart; start < numBlocks; ) {
+            int end = start;
+            while (end < numBlocks && !isAllocated(end))
+                end++;
+            if (end > start)
+                freeExtents.put(start, end - start);
+            start = end + 1;
+        }
+
+        byte[] table = readBlocks(inodeStart, inodeBlocks);
+        for (int inum = 0; inum < maxFiles; inum++)
+            inodeUsed[inum] = Lib.bytesToInt(table, inum * inodeSize) == inodeMagic;
+
+        importFiles();
+        commit();
+
+        if (journal != null) {
+            new KThread(new Runnable() {
+                public void run() {
+                    runCommitter();
+                }
+            }).setName("journal commit").fork();
+        }
+    }
+
+    private void format() {
+        Lib.debug(dbgExtent, "formatting extent file system: " + numBlocks
+                + " blocks, " + (numBlocks - dataStart) + " for data");
+
+        byte[] superblock = new byte[blockSize];
+        Lib.bytesFromInt(superblock, 0, superMagic);
+        Lib.bytesFromInt(superblock, 4, blockSize);
+        Lib.bytesFromInt(superblock, 8, numBlocks);
+        Lib.bytesFromInt(superblock, 12, maxFiles);
+        Lib.bytesFromInt(superblock, 16, numBuckets);
+        Lib.bytesFromInt(superblock, 20, journalBlocks);
+
+        writeBlocks(inodeStart, inodeBlocks, new byte[inodeBlocks * blockSize]);
+        writeBlocks(directoryStart, numBuckets, new byte[numBuckets * blockSize]);
+
+        byte[] bitmap = new byte[bitmapBlocks * blockSize];
+        for (int block = 0; block < dataStart; block++)
+            bitmap[block / 8] |= 1 << (block % 8);
+        writeBlocks(bitmapStart, bitmapBlocks, bitmap);
+
+        if (journal != null)
+            journal.format();
+
+        writeBlocks(0, 1, superblock);
+        cache.clear();
+    }
+
+    private void importFiles() {
+        String names = Config.getString("ExtentFileSystem.import", null);
+        FileSystem stub = Machine.stubFileSystem();
+        if (names == null || stub == null)
+            return;
+
+        for (StringTokenizer st = new StringTokenizer(names, ","); st.hasMoreTokens(); ) {
+            String name = st.nextToken();
+            if (lookup(name) != -1)
+                continue;
+
+            OpenFile source = stub.open(name, false);
+            if (source == null)
+                continue;
+            byte[] contents = Lib.loadFile(source);
+            source.close();
+
+            int inum = allocateInode();
+            if (contents == null || inum == -1 || !insert(name, inum))
+                continue;
+
+            Node node = new Node(inum);
+            nodes.put(inum, node);
+            inodeUsed[inum] = true;
+            writeFile(node, 0, contents, 0, contents.length);
+            trim(node);
+            writeInode(node);
+            writeBitmap();
+            endOperation();
+            Lib.debug(dbgExtent, "imported " + name + " in "
+                    + node.numExtents + " extents");
+        }
+
+    }
+
+    /**
+     * Find a name in the directory.
+     *
+     * @return the inode number, or -1 if the name is not there.
+     */
+    private int lookup(String name) {
+        byte[] key = name.getBytes();
+        int bucket = home(name);
+        for (int probe = 0; probe < numBuckets; probe++) {
+            byte[] block = readMeta(directoryStart + bucket);
+            int offset = findEntry(block, key);
+            if (offset != -1)
+                return Lib.bytesToInt(block, offset);
+            if (Lib.bytesToInt(block, 0) == 0)
+                break;
+
+            bucket = (bucket + 1) % numBuckets;
+        }
+        return -1;
+    }
+
+    private boolean insert(String name, int inum) {
+        byte[] key = name.getBytes();
+        int bucket = home(name);
+        for (int probe = 0; probe < numBuckets; probe++) {
+            int address = directoryStart + bucket;
+            byte[] block = readMeta(address).clone();
+            int end = bucketEnd(block);
+            if (end + 6 + key.length <= blockSize) {
+                Lib.bytesFromInt(block, end, inum);
+                Lib.bytesFromShort(block, end + 4, (short) key.length);
+                System.arraycopy(key, 0, block, end + 6, key.length);
+                Lib.bytesFromInt(block, 4, Lib.bytesToInt(block, 4) + 1);
+                writeMeta(address, block);
+                return true;
+            }
+
+            // make lookups probe past this bucket
+            Lib.bytesFromInt(block, 0, 1);
+            writeMeta(address, block);
+            bucket = (bucket + 1) % numBuckets;
+        }
+        return false;
+    }
+
+    private void delete(String name) {
+        byte[] key = name.getBytes();
+        int bucket = home(name);
+        for (int probe = 0; probe < numBuckets; probe++) {
+            int address = directoryStart + bucket;
+            byte[] block = readMeta(address).clone();
+            int offset = findEntry(block, key);
+            if (offset != -1) {
+                int length = 6 + key.length;
+                System.arraycopy(block, offset + length, block, offset,
+                        blockSize - offset - length);
+                Arrays.fill(block, blockSize - length, blockSize, (byte) 0);
+                Lib.bytesFromInt(block, 4, Lib.bytesToInt(block, 4) - 1);
+                writeMeta(address, block);
+                return;
+            }
+
+            bucket = (bucket + 1) % numBuckets;
+        }
+    }
+
+    private int home(String name) {
+        return (name.hashCode() & 0x7FFFFFFF) % numBuckets;
+    }
+
+    /**
+     * Return the offset of the entry for a name in a bucket, or -1.
+     */
+    private int findEntry(byte[] block, byte[] key) {
+        int count = Lib.bytesToInt(block, 4);
+        for (int i = 0, offset = bucketHeaderLength; i < count; i++) {
+            int length = Lib.bytesToUnsignedShort(block, offset + 4);
+            if (length == key.length) {
+                boolean match = true;
+                for (int j = 0; j < length && match; j++)
+                    match = block[offset + 6 + j] == key[j];
+                if (match)
+                    return offset;
+            }
+            offset += 6 + length;
+        }
+        return -1;
+    }
+
+    private int bucketEnd(byte[] block) {
+        int count = Lib.bytesToInt(block, 4);
+        int offset = bucketHeaderLength;
+        for (int i = 0; i < count; i++)
+            offset += 6 + Lib.bytesToUnsignedShort(block, offset + 4);
+        return offset;
+    }
+
+    private int allocateInode() {
+        for (int inum = 0; inum < maxFiles; inum++) {
+            if (!inodeUsed[inum] && !nodes.containsKey(inum))
+                return inum;
+        }
+        return -1;
+    }
+
+    private Node loadNode(int inum) {
+        Node node = nodes.get(inum);
+        if (node == null) {
+            byte[] block = readMeta(inodeStart + inum * inodeSize / blockSize);
+            int offset = inum * inodeSize % blockSize;
+
+            node = new Node(inum);
+            node.length = Lib.bytesToInt(block, offset + 4);
+            node.numExtents = Lib.bytesToInt(block, offset + 8);
+            for (int i = 0; i < node.numExtents; i++) {
+                node.start[i] = Lib.bytesToInt(block, offset + 16 + i * 8);
+                node.count[i] = Lib.bytesToInt(block, offset + 20 + i * 8);
+            }
+            nodes.put(inum, node);
+        }
+        return node;
+    }
+
+    private void writeInode(Node node) {
+        int address = inodeStart + node.inum * inodeSize / blockSize;
+        int offset = node.inum * inodeSize % blockSize;
+        byte[] block = readMeta(address).clone();
+
+        Arrays.fill(block, offset, offset + inodeSize, (byte) 0);
+        if (inodeUsed[node.inum]) {
+            Lib.bytesFromInt(block, offset, inodeMagic);
+            Lib.bytesFromInt(block, offset + 4, node.length);
+            Lib.bytesFromInt(block, offset + 8, node.numExtents);
+            for (int i = 0; i < node.numExtents; i++) {
+                Lib.bytesFromInt(block, offset + 16 + i * 8, node.start[i]);
+                Lib.bytesFromInt(block, offset + 20 + i * 8, node.count[i]);
+            }
+        }
+
+        writeMeta(address, block);
+        node.dirty = false;
+    }
+
+    private void freeNode(Node node) {
+        node.length = 0;
+        trim(node);
+        inodeUsed[node.inum] = false;
+        writeInode(node);
+        writeBitmap();
+        nodes.remove(node.inum);
+    }
+
+    /**
+     * Give back the blocks allocated past the end of a file.
+     */
+    private void trim(Node node) {
+        int needed = Lib.divRoundUp(node.length, blockSize);
+        if (node.allocatedBlocks() == needed)
+            return;
+
+        int kept = 0;
+        for (int i = 0; i < node.numExtents; i++) {
+            if (kept + node.count[i] <= needed) {
+                kept += node.count[i];
+                continue;
+            }
+
+            int keep = needed - kept;
+            free(node.start[i] + keep, node.count[i] - keep);
+            node.count[i] = keep;
+            kept += keep;
+        }
+        while (node.numExtents > 0 && node.count[node.numExtents - 1] == 0)
+            node.numExtents--;
+
+        node.bufferCount = 0;
+        node.dirty = true;
+    }
+
+    /**
+     * Make sure a file has blocks up to the specified block index.
+     *
+     * @return <tt>false</tt> if the disk is full or the file has too many
+     * extents.
+     */
+    private boolean grow(Node node, int numBlocksNeeded) {
+        int allocated = node.allocatedBlocks();
+        while (allocated < numBlocksNeeded) {
+            int want = Math.max(numBlocksNeeded - allocated, minExtentBlocks);
+            int last = node.numExtents - 1;
+            int goal = last >= 0 ? node.start[last] + node.count[last] : -1;
+
+            int[] extent = allocate(goal, want);
+            if (extent == null && !pendingFree.isEmpty()) {
+                commit();
+                extent = allocate(goal, want);
+            }
+            if (extent == null)
+                return false;
+
+            if (last >= 0 && extent[0] == goal) {
+                node.count[last] += extent[1];
+            } else if (node.numExtents < maxExtents) {
+                node.start[node.numExtents] = extent[0];
+                node.count[node.numExtents] = extent[1];
+                node.numExtents++;
+            } else {
+                free(extent[0], extent[1]);
+                return false;
+            }
+
+            allocated += extent[1];
+            node.dirty = true;
+        }
+        return true;
+    }
+
+    /**
+     * Allocate up to <i>want</i> blocks: right after <i>goal</i> if they are
+     * free, otherwise from the smallest free extent that holds them all, or
+     * failing that the largest one.
+     *
+     * @return the start and length of the allocated extent, or <tt>null</tt>
+     * if the disk is full.
+     */
+    private int[] allocate(int goal, int want) {
+        Integer start = null;
+        if (goal != -1 && freeExtents.containsKey(goal)) {
+            start = goal;
+        } else {
+            int bestLength = 0;
+            for (Map.Entry<Integer, Integer> e : freeExtents.entrySet()) {
+                int length = e.getValue();
+                boolean fits = length >= want, bestFits = bestLength >= want;
+                if (start == null || (fits && (!bestFits || length < bestLength))
+                        || (!fits && !bestFits && length > bestLength)) {
+                    start = e.getKey();
+                    bestLength = length;
+                }
+            }
+        }
+        if (start == null)
+            return null;
+
+        int length = freeExtents.remove(start);
+        int taken = Math.min(length, want);
+        if (taken < length)
+            freeExtents.put(start + taken, length - taken);
+
+        for (int block = start; block < start + taken; block++)
+            setAllocated(block, true);
+
+        return new int[]{start, taken};
+    }
+
+    /**
+     * Free an extent. With a journal, the blocks only become available once
+     * the transaction freeing them has committed.
+     */
+    private void free(int start, int length) {
+        if (length == 0)
+            return;
+
+        for (int block = start; block < start + length; block++)
+            setAllocated(block, false);
+
+        if (journal != null)
+            pendingFree.add(new int[]{start, length});
+        else
+            release(start, length);
+    }
+
+    private void release(int start, int length) {
+        Map.Entry<Integer, Integer> before = freeExtents.floorEntry(start);
+        if (before != null && before.getKey() + before.getValue() == start) {
+            start = before.getKey();
+            length += before.getValue();
+        }
+        Integer after = freeExtents.get(start + length);
+        if (after != null) {
+            freeExtents.remove(start + length);
+            length += after;
+        }
+        freeExtents.put(start, length);
+    }
+
+    private boolean isAllocated(int block) {
+        return (bitmap[block / 8] & (1 << (block % 8))) != 0;
+    }
+
+    private void setAllocated(int block, boolean allocated) {
+        if (allocated)
+            bitmap[block / 8] |= 1 << (block % 8);
+        else
+            bitmap[block / 8] &= ~(1 << (block % 8));
+        bitmapDirty[block / (blockSize * 8)] = true;
+    }
+
+    private void writeBitmap() {
+        for (int i = 0; i < bitmapBlocks; i++) {
+            if (bitmapDirty[i]) {
+                writeMeta(bitmapStart + i,
+                        Arrays.copyOfRange(bitmap, i * blockSize, (i + 1) * blockSize));
+                bitmapDirty[i] = false;
+            }
+        }
+    }
+
+    private int readFile(Node node, int pos, byte[] buf, int offset, int length) {
+        if (pos < 0 || length < 0)
+            return -1;
+
+        int end = Math.min(pos + length, node.length);
+        int amount = 0;
+        for (int p = pos; p < end; ) {
+            int index = p / blockSize, within = p % blockSize;
+            int chunk = Math.min(end - p, blockSize - within);
+
+            if (index < node.bufferIndex
+                    || index >= node.bufferIndex + node.bufferCount)
+                fillBuffer(node, index);
+
+            System.arraycopy(node.buffer, (index - node.bufferIndex) * blockSize
+                    + within, buf, offset + amount, chunk);
+
+            p += chunk;
+            amount += chunk;
+        }
+        return amount;
+    }
+
+    /**
+     * Read blocks starting at the specified index into the file's read-ahead
+     * buffer, with a single transfer that stays within one extent.
+     */
+    private void fillBuffer(Node node, int index) {
+        if (node.buffer == null)
+            node.buffer = new byte[readAheadBlocks * blockSize];
+
+        int run = node.runLength(index);
+        int count = Math.min(readAheadBlocks, Math.min(run,
+                Lib.divRoundUp(node.length, blockSize) - index));
+
+        readInto(node.blockAddress(index), count, node.buffer);
+        node.bufferIndex = index;
+        node.bufferCount = count;
+    }
+
+    private int writeFile(Node node, int pos, byte[] buf, int offset, int length) {
+        if (pos < 0 || length < 0)
+            return -1;
+
+        // fill any gap after the old end of the file with zeros
+        if (pos > node.length) {
+            byte[] zeros = new byte[pos - node.length];
+            if (writeFile(node, node.length, zeros, 0, zeros.length) != zeros.length)
+                return -1;
+        }
+
+        int end = pos + length;
+        if (!grow(node, Lib.divRoundUp(end, blockSize)))
+            end = Math.min(end, node.allocatedBlocks() * blockSize);
+
+        int amount = 0;
+        for (int p = pos; p < end; ) {
+            int index = p / blockSize, within = p % blockSize;
+            int count = Math.min(node.runLength(index),
+                    Lib.divRoundUp(end, blockSize) - index);
+            int chunk = Math.min(end - p, count * blockSize - within);
+
+            byte[] data = new byte[count * blockSize];
+            int lastIndex = index + count - 1;
+            // keep the old contents of partly written blocks
+            if ((within > 0 || (count == 1 && chunk < blockSize))
+                    && index * blockSize < node.length)
+                readInto(node.blockAddress(index), 1, data);
+            if (count > 1 && (within + chunk) % blockSize != 0
+                    && lastIndex * blockSize < node.length)
+                System.arraycopy(readBlocks(node.blockAddress(lastIndex), 1), 0,
+                        data, (count - 1) * blockSize, blockSize);
+
+            System.arraycopy(buf, offset + amount, data, within, chunk);
+            writeBlocks(node.blockAddress(index), count, data);
+
+            p += chunk;
+            amount += chunk;
+        }
+
+        if (pos + amount > node.length) {
+            node.length = pos + amount;
+            node.dirty = true;
+        }
+        node.bufferCount = 0;
+
+        return (amount == 0 && length > 0) ? -1 : amount;
+    }
+
+    private void readInto(int address, int count, byte[] data) {
+        disk.readSectors(address * sectorsPerBlock, count * sectorsPerBlock,
+                data, 0);
+    }
+
+    private byte[] readBlocks(int address, int count) {
+        byte[] data = new byte[count * blockSize];
+        readInto(address, count, data);
+        return data;
+    }
+
+    private void writeBlocks(int address, int count, byte[] data) {
+        disk.writeSectors(address * sectorsPerBlock, count * sectorsPerBlock,
+                data, 0);
+    }
+
+    /**
+     * Read a metadata block through the cache. The caller must not modify
+     * the returned array.
+     */
+    private byte[] readMeta(int address) {
+        byte[] block = journal != null ? journal.read(address) : null;
+        if (block != null)
+            return block;
+
+        block = cache.get(address);
+        if (block == null) {
+            block = readBlocks(address, 1);
+            cache.put(address, block);
+        }
+        return block;
+    }
+
+    private void writeMeta(int address, byte[] block) {
+        if (journal != null)
+            journal.write(address, block);
+        else
+            writeBlocks(address, 1, block);
+        cache.put(address, block);
+    }
+
+    /**
+     * Commit the running journal transaction, then make the blocks it freed
+     * available again.
+     */
+    private void commit() {
+        if (journal == null)
+            return;
+
+        journal.commit();
+        for (int[] extent : pendingFree)
+            release(extent[0], extent[1]);
+        pendingFree.clear();
+    }
+
+    /**
+     * Commit early if the running transaction is getting large. Called only
+     * between operations, so that each transaction holds whole operations.
+     */
+    private void endOperation() {
+        if (journal != null && journal.isFull())
+            commit();
+    }
+
+    private void runCommitter() {
+        while (true) {
+            ThreadedKernel.alarm.waitUntil(commitInterval);
+
+            lock.acquire();
+            if (journal.isDirty() || !pendingFree.isEmpty())
+                commit();
+            lock.release();
+        }
+    }
+
+    /**
+     * The in-memory copy of a file's inode.
+     */
+    private class Node {
+        Node(int inum) {
+            this.inum = inum;
+        }
+
+        int allocatedBlocks() {
+            int total = 0;
+            for (int i = 0; i < numExtents; i++)
+                total += count[i];
+            return total;
+        }
+
+        int blockAddress(int index) {
+            for (int i = 0; i < numExtents; i++) {
+                if (index < count[i])
+                    return start[i] + index;
+                index -= count[i];
+            }
+            Lib.assertNotReached("block beyond end of file");
+            return -1;
+        }
+
+        /**
+         * Return the number of blocks from the specified index to the end of
+         * its extent.
+         */
+        int runLength(int index) {
+            for (int i = 0; i < numExtents; i++) {
+                if (index < count[i])
+                    return count[i] - index;
+                index -= count[i];
+            }
+            return 0;
+        }
+
+        int inum;
+        int length = 0;
+        int numExtents = 0;
+        int[] start = new int[maxExtents];
+        int[] count = new int[maxExtents];
+
+        boolean dirty = false;
+        int openCount = 0;
+        boolean unlinked = false;
+
+        byte[] buffer = null;
+        int bufferIndex = 0, bufferCount = 0;
+    }
+
+    /**
+     * A file in the extent file system.
+     */
+    private class ExtentOpenFile extends OpenFileWithPosition {
+        ExtentOpenFile(String name, Node node) {
+            super(ExtentFileSystem.this, name);
+
+            this.node = node;
+        }
+
+        public int read(int pos, byte[] buf, int offset, int length) {
+            lock.acquire();
+            int amount = node == null ? -1
+                    : readFile(node, pos, buf, offset, length);
+            lock.release();
+            return amount;
+        }
+
+        public int write(int pos, byte[] buf, int offset, int length) {
+            lock.acquire();
+            int amount = node == null ? -1
+                    : writeFile(node, pos, buf, offset, length);
+            lock.release();
+            return amount;
+        }
+
+        public int length() {
+            return node == null ? -1 : node.length;
+        }
+
+        public void close() {
+            lock.acquire();
+            if (node != null) {
+                if (--node.openCount == 0) {
+                    if (node.unlinked) {
+                        freeNode(node);
+                    } else {
+                        trim(node);
+                        nodes.remove(node.inum);
+                    }
+                }
+                if (node.dirty) {
+                    writeInode(node);
+                    writeBitmap();
+                    endOperation();
+                }
+                node = null;
+            }
+            lock.release();
+        }
+
+        private Node node;
+    }
+
+    private SynchDisk disk;
+    private nachos.threads.Lock lock = new nachos.threads.Lock();
+    private boolean mounted = false;
+
+    private int blockSize, sectorsPerBlock, numBlocks, maxFiles, numBuckets;
+    private int minExtentBlocks, readAheadBlocks;
+    private int bitmapStart, bitmapBlocks, inodeStart, inodeBlocks;
+    private int directoryStart, journalStart, journalBlocks, dataStart;
+    private int commitInterval;
+
+    private byte[] bitmap;
+    private boolean[] bitmapDirty;
+    private TreeMap<Integer, Integer> freeExtents = new TreeMap<Integer, Integer>();
+    private boolean[] inodeUsed;
+    private HashMap<Integer, Node> nodes = new HashMap<Integer, Node>();
+    private LinkedHashMap<Integer, byte[]> cache;
+
+    private Journal journal = null;
+    private LinkedList<int[]> pendingFree = new LinkedList<int[]>();
+
+    private static final int inodeSize = 128;
+    private static final int maxExtents = (inodeSize - 16) / 8;
+    private static final int bucketHeaderLength = 8;
+    private static final int maxNameLength = 256;
+
+    private static final int superMagic = 0x45585446;
+    private static final int inodeMagic = 0x494e4f44;
+
+    private static final char dbgExtent = 'e';
+}
@@ -0,0 +1,93 @@
+package nachos.filesys;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.Random;
+
+/**
+ * Measures how fast a file system reads a file sequentially and at random
+ * offsets, in simulated time. The kernel's file system is compared with the
+ * stub file system when it is something else.
+ * <p>
+ * <p>
+ * <tt>UserKernel</tt> runs the benchmark at the end of its initialization,
+ * before its console self test and the shell, when
+ * <tt>FileSystemBenchmark.run</tt> is set. The file is
+ * <tt>FileSystemBenchmark.fileSize</tt> bytes long and is read in requests of
+ * <tt>FileSystemBenchmark.requestSize</tt> bytes.
+ */
+public class FileSystemBenchmark {
+    /**
+     * Run the benchmark on the kernel's file system, and on the stub file
+     * system if it differs, printing the results.
+     */
+    public static void run() {
+        int fileSize = Config.getInteger("FileSystemBenchmark.fileSize", 65536);
+        int requestSize = Config.getInteger("FileSystemBenchmark.requestSize", 1024);
+        Lib.assertTrue(fileSize > 0 && requestSize > 0 && requestSize <= fileSize);
+
+        FileSystem fileSystem = ThreadedKernel.fileSystem;
+        if (fileSystem != null)
+            measure(fileSystem, fileSize, requestSize);
+
+        FileSystem stub = Machine.stubFileSystem();
+        if (stub != null && stub != fileSystem)
+            measure(stub, fileSize, requestSize);
+    }
+
+    private static void measure(FileSystem fileSystem, int fileSize,
+                                int requestSize) {
+        String label = fileSystem.getClass().getSimpleName();
+
+        OpenFile file = fileSystem.open(fileName, true);
+        if (file == null) {
+            System.out.println(label + ": cannot create " + fileName);
+            return;
+        }
+
+        byte[] data = new byte[requestSize];
+        Random random = new Random(0);
+        random.nextBytes(data);
+
+        long start = Machine.timer().getTime();
+        for (int pos = 0; pos < fileSize; pos += requestSize)
+            file.write(pos, data, 0, Math.min(requestSize, fileSize - pos));
+        file.close();
+        long write = Machine.timer().getTime() - start;
+
+        file = fileSystem.open(fileName, false);
+        int numRequests = fileSize / requestSize;
+
+        start = Machine.timer().getTime();
+        for (int i = 0; i < numRequests; i++)
+            file.read(i * requestSize, data, 0, requestSize);
+        long sequential = Machine.timer().getTime() - start;
+
+        start = Machine.timer().getTime();
+        for (int i = 0; i < numRequests; i++)
+            file.read(random.nextInt(numRequests) * requestSize, data, 0,
+                    requestSize);
+        long randomRead = Machine.timer().getTime() - start;
+
+        file.close();
+        fileSystem.remove(fileName);
+
+        System.out.println(label + ": " + fileSize + " bytes in "
+                + requestSize + "-byte requests");
+        System.out.println("\twrite " + rate(fileSize, write)
+                + ", sequential read " + rate(fileSize, sequential)
+                + ", random read " + rate(numRequests * requestSize, randomRead)
+                + " bytes per 1000 ticks");
+    }
+
+    /**
+     * Return a transfer rate, or "-" if the transfer took no simulated time
+     * at all, as it can on a file system without a device behind it.
+     */
+    private static String rate(long bytes, long ticks) {
+        return ticks == 0 ? "-" : Long.toString(bytes * 1000 / ticks);
+    }
+
+    private static final String fileName = "fsbench.tmp";
+}
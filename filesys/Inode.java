@@ -0,0 +1,178 @@
+package nachos.filesys;
+
+import nachos.machine.*;
+
+import java.util.Arrays;
+
+/**
+ * The in-memory copy of a file's inode in the log-structured file system.
+ * An inode holds the length of the file and the addresses of its blocks: a
+ * number of direct pointers in the inode block itself, and one indirect block
+ * holding more. An address of 0 stands for a block that has never been
+ * written, which reads as zeros.
+ * <p>
+ * <p>
+ * On disk an inode takes a whole block:
+ * <pre>
+ * magic, inode number, length, indirect block address, direct pointers...
+ * </pre>
+ * A block with a length of -1 is a tombstone, logged when a file is removed
+ * so that roll-forward after a crash also removes it.
+ */
+class Inode {
+    /**
+     * Allocate a new, empty inode.
+     *
+     * @param inum      the inode number.
+     * @param blockSize the size of a file system block.
+     */
+    Inode(int inum, int blockSize) {
+        this.inum = inum;
+        this.numDirect = numDirect(blockSize);
+        this.blocks = new int[maxBlocks(blockSize)];
+    }
+
+    /**
+     * Return the number of direct pointers in an inode.
+     */
+    static int numDirect(int blockSize) {
+        return (blockSize - headerLength) / 4;
+    }
+
+    /**
+     * Return the largest number of blocks a file can have.
+     */
+    static int maxBlocks(int blockSize) {
+        return numDirect(blockSize) + blockSize / 4;
+    }
+
+    /**
+     * Return the address of a block of this file.
+     *
+     * @param index the index of the block within the file.
+     * @return the block's address, or 0 if it has never been written.
+     */
+    int getBlock(int index) {
+        return index < blocks.length ? blocks[index] : 0;
+    }
+
+    /**
+     * Set the address of a block of this file, marking the inode dirty.
+     *
+     * @param index   the index of the block within the file.
+     * @param address the new address of the block.
+     */
+    void setBlock(int index, int address) {
+        blocks[index] = address;
+        if (index >= numDirect)
+            indirectDirty = true;
+        dirty = true;
+    }
+
+    /**
+     * Return <tt>true</tt> if any block needs the indirect block.
+     */
+    boolean usesIndirect() {
+        for (int i = numDirect; i < blocks.length; i++) {
+            if (blocks[i] != 0)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Fill a block with the on-disk form of this inode.
+     *
+     * @param block the block to fill.
+     */
+    void serialize(byte[] block) {
+        Arrays.fill(block, (byte) 0);
+        Lib.bytesFromInt(block, 0, magic);
+        Lib.bytesFromInt(block, 4, inum);
+        Lib.bytesFromInt(block, 8, length);
+        Lib.bytesFromInt(block, 12, indirect);
+        for (int i = 0; i < numDirect; i++)
+            Lib.bytesFromInt(block, headerLength + i * 4, blocks[i]);
+    }
+
+    /**
+     * Fill a block with the on-disk form of the indirect block.
+     *
+     * @param block the block to fill.
+     */
+    void serializeIndirect(byte[] block) {
+        for (int i = numDirect; i < blocks.length; i++)
+            Lib.bytesFromInt(block, (i - numDirect) * 4, blocks[i]);
+    }
+
+    /**
+     * Load the pointers held in the indirect block.
+     *
+     * @param block the contents of the indirect block.
+     */
+    void parseIndirect(byte[] block) {
+        for (int i = numDirect; i < blocks.length; i++)
+            blocks[i] = Lib.bytesToInt(block, (i - numDirect) * 4);
+    }
+
+    /**
+     * Parse an inode block.
+     *
+     * @param block     the contents of the block.
+     * @param blockSize the size of a file system block.
+     * @return the inode, or <tt>null</tt> if the block is not an inode or is
+     * a tombstone.
+     */
+    static Inode parse(byte[] block, int blockSize) {
+        if (Lib.bytesToInt(block, 0) != magic || Lib.bytesToInt(block, 8) < 0)
+            return null;
+
+        Inode inode = new Inode(Lib.bytesToInt(block, 4), blockSize);
+        inode.length = Lib.bytesToInt(block, 8);
+        inode.indirect = Lib.bytesToInt(block, 12);
+        for (int i = 0; i < inode.numDirect; i++)
+            inode.blocks[i] = Lib.bytesToInt(block, headerLength + i * 4);
+
+        return inode;
+    }
+
+    /**
+     * Fill a block with a tombstone for the specified inode.
+     *
+     * @param block the block to fill.
+     * @param inum  the number of the removed inode.
+     */
+    static void serializeTombstone(byte[] block, int inum) {
+        Arrays.fill(block, (byte) 0);
+        Lib.bytesFromInt(block, 0, magic);
+        Lib.bytesFromInt(block, 4, inum);
+        Lib.bytesFromInt(block, 8, -1);
+    }
+
+    /**
+     * Return <tt>true</tt> if the block is a tombstone.
+     *
+     * @param block the contents of an inode block.
+     */
+    static boolean isTombstone(byte[] block) {
+        return Lib.bytesToInt(block, 0) == magic && Lib.bytesToInt(block, 8) < 0;
+    }
+
+    int inum;
+    int length = 0;
+    int indirect = 0;
+    int[] blocks;
+    private int numDirect;
+
+    /** The inode must be written to the log. */
+    boolean dirty = false;
+    /** The indirect block must be written to the log. */
+    boolean indirectDirty = false;
+    /** The number of open files using this inode. */
+    int openCount = 0;
+    /** The file has been removed from the directory. */
+    boolean unlinked = false;
+
+    private static final int headerLength = 16;
+    private static final int magic = 0x4c465349;
+}
@@ -0,0 +1,310 @@
+package nachos.filesys;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * A write-ahead journal for the metadata blocks of a file system. Instead of
+ * writing a metadata block in place, the file system hands the new contents
+ * to the journal, which collects them into a running transaction. Many
+ * updates share one transaction, and a block updated several times is logged
+ * once, so the journal turns a stream of small synchronous metadata writes
+ * into an occasional large sequential one.
+ * <p>
+ * <p>
+ * Committing a transaction writes one record to the journal area: a header
+ * block holding a sequence number, the number of blocks and their home
+ * addresses, followed by the blocks themselves, all with a single transfer.
+ * The header also holds a CRC-32 of the whole record, so a record that was
+ * only partly written when the machine halted is recognized and ignored. A
+ * committed block stays in memory until a checkpoint writes it to its home
+ * address. Checkpoints happen when the journal area is full, after which the
+ * journal starts again from its beginning.
+ * <p>
+ * <p>
+ * The first block of the journal area names the sequence number and position
+ * of the oldest record that may not have been checkpointed. When the file
+ * system is mounted, <tt>replay()</tt> reads the records from there for as
+ * long as each one has the next sequence number and a valid checksum, and
+ * writes their blocks home. Replaying a record twice does no harm, so the
+ * file system is left as it was after the last committed transaction, no
+ * matter where a halt or crash interrupted it.
+ * <p>
+ * <p>
+ * The journal does no locking of its own; the file system using it must
+ * serialize its calls.
+ */
+public class Journal {
+    /**
+     * Allocate a new journal.
+     *
+     * @param disk      the disk holding the journal.
+     * @param start     the first block of the journal area.
+     * @param numBlocks the number of blocks in the journal area, including
+     *                  its header.
+     * @param blockSize the size of a file system block, a multiple of the
+     *                  sector size.
+     */
+    public Journal(SynchDisk disk, int start, int numBlocks, int blockSize) {
+        Lib.assertTrue(numBlocks >= 3 && blockSize % disk.getDisk().getSectorSize() == 0);
+
+        this.disk = disk;
+        this.start = start;
+        this.numBlocks = numBlocks;
+        this.blockSize = blockSize;
+
+        sectorsPerBlock = blockSize / disk.getDisk().getSectorSize();
+        maxTransaction = Math.min((blockSize - headerLength) / 4, numBlocks - 2);
+    }
+
+    /**
+     * Empty the journal of a newly formatted file system. The whole area is
+     * cleared so that no record of an earlier file system can be replayed.
+     */
+    public void format() {
+        running.clear();
+        committed.clear();
+        sequence = 1;
+        position = 0;
+
+        writeBlocks(start, numBlocks, new byte[numBlocks * blockSize]);
+        writeHeader();
+    }
+
+    /**
+     * Write the blocks of every committed record in the journal to their home
+     * addresses, and empty the journal. Called when the file system is
+     * mounted, before it reads any metadata.
+     */
+    public void replay() {
+        running.clear();
+        committed.clear();
+
+        byte[] header = readBlocks(start, 1);
+        if (Lib.bytesToInt(header, 0) != journalMagic
+                || Lib.bytesToInt(header, 12) != (int) checksum(header, 4, 8)) {
+            Lib.debug(dbgJournal, "no journal, formatting it");
+            format();
+            return;
+        }
+
+        sequence = Lib.bytesToInt(header, 4);
+        position = Lib.bytesToInt(header, 8);
+
+        int numRecords = 0;
+        while (position + 1 < numBlocks) {
+            byte[] record = readBlocks(start + 1 + position, 1);
+            int count = Lib.bytesToInt(record, 8);
+            if (Lib.bytesToInt(record, 0) != recordMagic
+                    || Lib.bytesToInt(record, 4) != sequence
+                    || count <= 0 || count > maxTransaction
+                    || position + 1 + count >= numBlocks)
+                break;
+
+            byte[] blocks = readBlocks(start + 2 + position, count);
+            if (Lib.bytesToInt(record, 12) != (int) checksum(record, blocks, count))
+                break;
+
+            for (int i = 0; i < count; i++)
+                committed.put(Lib.bytesToInt(record, headerLength + i * 4),
+                        Arrays.copyOfRange(blocks, i * blockSize, (i + 1) * blockSize));
+
+            numRecords++;
+            sequence++;
+            position += 1 + count;
+        }
+
+        Lib.debug(dbgJournal, "replayed " + numRecords + " records, "
+                + committed.size() + " blocks");
+        checkpoint();
+    }
+
+    /**
+     * Add a new version of a metadata block to the running transaction. It
+     * becomes durable when the transaction commits.
+     *
+     * @param address the home address of the block.
+     * @param block   the new contents of the block, which are copied.
+     */
+    public void write(int address, byte[] block) {
+        running.put(address, Arrays.copyOf(block, blockSize));
+        numUpdates++;
+    }
+
+    /**
+     * Return the newest journaled version of a block, or <tt>null</tt> if the
+     * block at its home address is current. The caller must not modify the
+     * returned array.
+     *
+     * @param address the home address of the block.
+     */
+    public byte[] read(int address) {
+        byte[] block = running.get(address);
+        return block != null ? block : committed.get(address);
+    }
+
+    /**
+     * Return <tt>true</tt> if the running transaction holds any updates.
+     */
+    public boolean isDirty() {
+        return !running.isEmpty();
+    }
+
+    /**
+     * Return <tt>true</tt> if the running transaction is half as large as
+     * the largest one a record can hold. The file system should commit at the
+     * end of the current operation, since the journal never commits in the
+     * middle of one.
+     */
+    public boolean isFull() {
+        return running.size() >= maxTransaction / 2;
+    }
+
+    /**
+     * Commit the running transaction: write its record to the journal with a
+     * single transfer. Once this returns, its updates survive a halt.
+     */
+    public void commit() {
+        if (running.isEmpty())
+            return;
+
+        int count = running.size();
+        Lib.assertTrue(count <= maxTransaction, "transaction too large for journal");
+        if (position + 1 + count >= numBlocks)
+            checkpoint();
+
+        byte[] record = new byte[(1 + count) * blockSize];
+        Lib.bytesFromInt(record, 0, recordMagic);
+        Lib.bytesFromInt(record, 4, sequence);
+        Lib.bytesFromInt(record, 8, count);
+
+        int i = 0;
+        for (Map.Entry<Integer, byte[]> e : running.entrySet()) {
+            Lib.bytesFromInt(record, headerLength + i * 4, e.getKey());
+            System.arraycopy(e.getValue(), 0, record, (1 + i) * blockSize, blockSize);
+            i++;
+        }
+
+        byte[] blocks = Arrays.copyOfRange(record, blockSize, record.length);
+        Lib.bytesFromInt(record, 12, (int) checksum(record, blocks, count));
+
+        writeBlocks(start + 1 + position, 1 + count, record);
+
+        Lib.debug(dbgJournal, "committed record " + sequence + ": " + count
+                + " blocks for " + (numUpdates - updatesCommitted) + " updates");
+
+        committed.putAll(running);
+        running.clear();
+        sequence++;
+        position += 1 + count;
+        numCommits++;
+        blocksCommitted += count;
+        updatesCommitted = numUpdates;
+    }
+
+    /**
+     * Write every committed block to its home address, coalescing blocks
+     * with consecutive addresses into one transfer, and start the journal
+     * over from its beginning.
+     */
+    public void checkpoint() {
+        TreeMap<Integer, byte[]> blocks = new TreeMap<Integer, byte[]>(committed);
+        while (!blocks.isEmpty()) {
+            int first = blocks.firstKey();
+            int count = 0;
+            while (blocks.containsKey(first + count))
+                count++;
+
+            byte[] data = new byte[count * blockSize];
+            for (int i = 0; i < count; i++)
+                System.arraycopy(blocks.remove(first + i), 0, data, i * blockSize,
+                        blockSize);
+            writeBlocks(first, count, data);
+        }
+
+        if (!committed.isEmpty())
+            numCheckpoints++;
+        committed.clear();
+
+        position = 0;
+        writeHeader();
+    }
+
+    /**
+     * Return a summary of the statistics kept by this journal.
+     *
+     * @return a line describing the transactions committed so far.
+     */
+    public String report() {
+        return "Journal: updates " + numUpdates
+                + ", commits " + numCommits
+                + ", blocks logged " + blocksCommitted
+                + ", checkpoints " + numCheckpoints;
+    }
+
+    private void writeHeader() {
+        byte[] header = new byte[blockSize];
+        Lib.bytesFromInt(header, 0, journalMagic);
+        Lib.bytesFromInt(header, 4, sequence);
+        Lib.bytesFromInt(header, 8, position);
+        Lib.bytesFromInt(header, 12, (int) checksum(header, 4, 8));
+        writeBlocks(start, 1, header);
+    }
+
+    /**
+     * Return the checksum of a record: its sequence number, block count and
+     * addresses, and the blocks themselves.
+     */
+    private long checksum(byte[] record, byte[] blocks, int count) {
+        CRC32 crc = new CRC32();
+        crc.update(record, 4, 8);
+        crc.update(record, headerLength, count * 4);
+        crc.update(blocks, 0, count * blockSize);
+        return crc.getValue();
+    }
+
+    private static long checksum(byte[] data, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(data, offset, length);
+        return crc.getValue();
+    }
+
+    private byte[] readBlocks(int address, int count) {
+        byte[] data = new byte[count * blockSize];
+        disk.readSectors(address * sectorsPerBlock, count * sectorsPerBlock,
+                data, 0);
+        return data;
+    }
+
+    private void writeBlocks(int address, int count, byte[] data) {
+        disk.writeSectors(address * sectorsPerBlock, count * sectorsPerBlock,
+                data, 0);
+    }
+
+    private SynchDisk disk;
+    private int start, numBlocks, blockSize, sectorsPerBlock;
+    private int maxTransaction;
+
+    /** The sequence number of the next record. */
+    private int sequence = 1;
+    /** The position of the next record, relative to the first record block. */
+    private int position = 0;
+
+    private LinkedHashMap<Integer, byte[]> running = new LinkedHashMap<Integer, byte[]>();
+    private LinkedHashMap<Integer, byte[]> committed = new LinkedHashMap<Integer, byte[]>();
+
+    private long numUpdates = 0, updatesCommitted = 0, numCommits = 0;
+    private long blocksCommitted = 0, numCheckpoints = 0;
+
+    private static final int headerLength = 16;
+    private static final int journalMagic = 0x4a524e4c;
+    private static final int recordMagic = 0x4a524543;
+
+    private static final char dbgJournal = 'j';
+}
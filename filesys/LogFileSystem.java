@@ -0,0 +1,1003 @@
+package nachos.filesys;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.StringTokenizer;
+
+/**
+ * A log-structured file system on the machine's disk. Nothing is ever
+ * updated in place: new file blocks, inodes and pieces of the inode map are
+ * appended to a log, which is written to the disk sequentially, a segment at
+ * a time. Small writes are gathered in memory and reach the disk as one large
+ * transfer, which makes creating and copying files cheap.
+ * <p>
+ * <p>
+ * The disk is divided into blocks of <tt>LogFileSystem.blockSize</tt> bytes.
+ * The first blocks hold two checkpoint regions, written alternately; the rest
+ * is divided into segments of <tt>LogFileSystem.segmentBlocks</tt> blocks.
+ * Within a segment the log is written in partial segments, each made of a
+ * summary block naming the blocks that follow it. The inode map, which gives
+ * the address of the newest copy of each inode, is kept in memory and written
+ * to the log at each checkpoint. A checkpoint records where the inode map is
+ * and where the log ends.
+ * <p>
+ * <p>
+ * The log is flushed whenever a file that was written is closed and whenever
+ * a file is removed. A checkpoint is taken after every
+ * <tt>LogFileSystem.checkpointSegments</tt> segments, and by <tt>sync()</tt>,
+ * which the kernel calls before halting. When the file system is
+ * mounted, it reads the newest checkpoint and then rolls forward through any
+ * partial segments written after it, so a flushed update survives a halt
+ * between checkpoints.
+ * <p>
+ * <p>
+ * A cleaner thread wakes every <tt>LogFileSystem.cleanerInterval</tt> ticks.
+ * When fewer than <tt>LogFileSystem.cleanThreshold</tt> segments are clean,
+ * it copies the live blocks of the segments with the best cost-benefit ratio
+ * to the end of the log, so that the segments can be reused. Writers also
+ * clean when they run out of segments.
+ * <p>
+ * <p>
+ * The directory is a single flat table stored as the file with inode number
+ * 0. To use this file system, enable <tt>Machine.disk</tt> and set
+ * <tt>ThreadedKernel.fileSystem</tt> to
+ * <tt>nachos.filesys.LogFileSystem</tt>. If the disk holds no file system, a
+ * new one is created. The files named in <tt>LogFileSystem.import</tt>, a
+ * comma-separated list, are copied from the stub file system when they are
+ * missing.
+ */
+public class LogFileSystem implements SyncableFileSystem {
+    /**
+     * Allocate a new log-structured file system. The disk is mounted when
+     * the file system is first used, since that needs a running thread.
+     */
+    public LogFileSystem() {
+        Lib.assertTrue(ThreadedKernel.disk != null,
+                "LogFileSystem requires Machine.disk");
+
+        disk = ThreadedKernel.disk;
+
+        int sectorSize = disk.getDisk().getSectorSize();
+        blockSize = Config.getInteger("LogFileSystem.blockSize", 512);
+        segmentBlocks = Config.getInteger("LogFileSystem.segmentBlocks", 16);
+        maxFiles = Config.getInteger("LogFileSystem.maxFiles", 256);
+        checkpointSegments = Config.getInteger("LogFileSystem.checkpointSegments", 4);
+        cleanerInterval = Config.getInteger("LogFileSystem.cleanerInterval", 100000);
+        cleanThreshold = Config.getInteger("LogFileSystem.cleanThreshold", 4);
+        Lib.assertTrue(blockSize % sectorSize == 0 && blockSize >= 64);
+        Lib.assertTrue(segmentBlocks >= 4 && maxFiles > 1);
+
+        sectorsPerBlock = blockSize / sectorSize;
+        int numBlocks = disk.getDisk().getNumSectors() / sectorsPerBlock;
+
+        mapEntriesPerBlock = blockSize / 4;
+        numMapBlocks = Lib.divRoundUp(maxFiles, mapEntriesPerBlock);
+        checkpointBlocks = Lib.divRoundUp(checkpointHeaderLength
+                + numMapBlocks * 4 + 8, blockSize);
+        firstSegmentBlock = 2 * checkpointBlocks;
+        numSegments = (numBlocks - firstSegmentBlock) / segmentBlocks;
+        summaryEntries = (blockSize - summaryHeaderLength) / 8;
+        Lib.assertTrue(numSegments >= reserveSegments + 3,
+                "disk too small for LogFileSystem");
+
+        final int cacheBlocks = Config.getInteger("LogFileSystem.cacheBlocks", 64);
+        cache = new LinkedHashMap<Integer, byte[]>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<Integer, byte[]> eldest) {
+                return size() > cacheBlocks;
+            }
+        };
+    }
+
+    public OpenFile open(String name, boolean truncate) {
+        if (name.length() == 0 || name.length() > maxNameLength)
+            return null;
+
+        lock.acquire();
+        mount();
+
+        Inode inode;
+        boolean changed = truncate;
+        Integer inum = directory.get(name);
+        if (inum == null) {
+            int free = truncate ? allocateInode() : -1;
+            if (free == -1) {
+                lock.release();
+                return null;
+            }
+
+            inode = new Inode(free, blockSize);
+            inode.dirty = true;
+            inodes.put(free, inode);
+            directory.put(name, free);
+            directoryDirty = true;
+        } else {
+            inode = loadInode(inum);
+            if (truncate && inode.length > 0)
+                truncate(inode);
+        }
+
+        inode.openCount++;
+        lock.release();
+
+        return new LogOpenFile(name, inode, changed);
+    }
+
+    public boolean remove(String name) {
+        lock.acquire();
+        mount();
+
+        Integer inum = directory.remove(name);
+        if (inum != null) {
+            directoryDirty = true;
+
+            Inode inode = loadInode(inum);
+            inode.unlinked = true;
+            if (inode.openCount == 0)
+                freeInode(inode);
+
+            flush();
+        }
+
+        lock.release();
+        return inum != null;
+    }
+
+    /**
+     * Flush the log and take a checkpoint.
+     */
+    public void sync() {
+        lock.acquire();
+        mount();
+        takeCheckpoint();
+        lock.release();
+    }
+
+    /**
+     * Mount the disk if it has not been mounted yet: load the newest
+     * checkpoint and roll forward, or create a new file system.
+     */
+    private void mount() {
+        if (mounted)
+            return;
+        mounted = true;
+
+        imap = new int[maxFiles];
+        mapAddress = new int[numMapBlocks];
+        mapDirty = new boolean[numMapBlocks];
+        live = new int[numSegments];
+        writeTime = new long[numSegments];
+        state = new int[numSegments];
+
+        if (Config.getBoolean("LogFileSystem.format", false) || !loadCheckpoint())
+            format();
+        else
+            rollForward();
+
+        importFiles();
+
+        if (cleanerInterval > 0) {
+            new KThread(new Runnable() {
+                public void run() {
+                    runCleaner();
+                }
+            }).setName("segment cleaner").fork();
+        }
+    }
+
+    private void format() {
+        Lib.debug(dbgLog, "formatting log file system: " + numSegments
+                + " segments of " + segmentBlocks + " blocks");
+
+        // make sure no stale checkpoint survives
+        byte[] zeros = new byte[checkpointBlocks * blockSize];
+        writeBlocks(0, checkpointBlocks, zeros);
+        writeBlocks(checkpointBlocks, checkpointBlocks, zeros);
+
+        Arrays.fill(state, CLEAN);
+        numClean = numSegments;
+        tailSegment = takeCleanSegment();
+        tailOffset = 0;
+        nextSegment = takeCleanSegment();
+
+        Inode root = new Inode(directoryInode, blockSize);
+        root.dirty = true;
+        inodes.put(directoryInode, root);
+        Arrays.fill(mapDirty, true);
+
+        takeCheckpoint();
+    }
+
+    /**
+     * Load the newer of the two checkpoints.
+     *
+     * @return <tt>false</tt> if neither checkpoint region is valid.
+     */
+    private boolean loadCheckpoint() {
+        byte[] best = null;
+        for (int region = 0; region < 2; region++) {
+            byte[] data = readBlocks(region * checkpointBlocks, checkpointBlocks);
+            long seq = checkpointSeq(data);
+            if (seq > 0 && (best == null || seq > checkpointSeq(best))) {
+                best = data;
+                checkpointRegion = 1 - region;
+            }
+        }
+        if (best == null)
+            return false;
+
+        checkpointSeq = checkpointSeq(best);
+        tailSegment = Lib.bytesToInt(best, 12);
+        tailOffset = Lib.bytesToInt(best, 16);
+        nextSegment = Lib.bytesToInt(best, 20);
+        logSeq = bytesToLong(best, 24);
+        for (int i = 0; i < numMapBlocks; i++) {
+            mapAddress[i] = Lib.bytesToInt(best, checkpointHeaderLength + i * 4);
+            loadMapBlock(i, readBlock(mapAddress[i]));
+        }
+
+        Lib.debug(dbgLog, "loaded checkpoint " + checkpointSeq + ", log at "
+                + tailSegment + "/" + tailOffset);
+        return true;
+    }
+
+    private long checkpointSeq(byte[] data) {
+        if (Lib.bytesToInt(data, 0) != checkpointMagic)
+            return -1;
+
+        long seq = bytesToLong(data, 4);
+        long trailer = bytesToLong(data, checkpointHeaderLength + numMapBlocks * 4);
+        return seq == trailer ? seq : -1;
+    }
+
+    /**
+     * Apply the partial segments written after the checkpoint, then work
+     * out which segments are in use.
+     */
+    private void rollForward() {
+        int segment = tailSegment, offset = tailOffset;
+        int numPartials = 0;
+
+        while (true) {
+            int address = segmentStart(segment) + offset;
+            byte[] summary = readBlocks(address, 1);
+            int count = Lib.bytesToInt(summary, 12);
+            if (Lib.bytesToInt(summary, 0) != summaryMagic
+                    || bytesToLong(summary, 4) != logSeq
+                    || count <= 0 || count > segmentBlocks - offset - 1)
+                break;
+
+            for (int i = 0; i < count; i++) {
+                int inum = Lib.bytesToInt(summary, summaryHeaderLength + i * 8);
+                int kind = Lib.bytesToInt(summary, summaryHeaderLength + i * 8 + 4);
+                int blockAddress = address + 1 + i;
+
+                if (kind == INODE) {
+                    byte[] block = readBlock(blockAddress);
+                    imap[inum] = Inode.isTombstone(block) ? 0 : blockAddress;
+                    mapDirty[inum / mapEntriesPerBlock] = true;
+                } else if (kind == MAP) {
+                    mapAddress[inum] = blockAddress;
+                    loadMapBlock(inum, readBlock(blockAddress));
+                }
+            }
+
+            numPartials++;
+            logSeq++;
+            offset += 1 + count;
+            nextSegment = Lib.bytesToInt(summary, 16);
+            if (segmentBlocks - offset < 2) {
+                segment = nextSegment;
+                offset = 0;
+                nextSegment = -1;
+            }
+        }
+
+        tailSegment = segment;
+        tailOffset = offset;
+
+        countLiveBlocks();
+
+        if (numPartials > 0) {
+            Lib.debug(dbgLog, "rolled forward " + numPartials
+                    + " partial segments");
+            takeCheckpoint();
+        }
+    }
+
+    /**
+     * Rebuild the segment usage table from the inode map, and pick the next
+     * segment of the log if it is not known.
+     */
+    private void countLiveBlocks() {
+        for (int i = 0; i < numMapBlocks; i++)
+            live[segmentOf(mapAddress[i])]++;
+
+        for (int inum = 0; inum < maxFiles; inum++) {
+            if (imap[inum] == 0)
+                continue;
+
+            Inode inode = loadInode(inum);
+            live[segmentOf(imap[inum])]++;
+            if (inode.indirect != 0)
+                live[segmentOf(inode.indirect)]++;
+            for (int address : inode.blocks) {
+                if (address != 0)
+                    live[segmentOf(address)]++;
+            }
+        }
+
+        numClean = 0;
+        for (int segment = 0; segment < numSegments; segment++) {
+            if (live[segment] == 0 && segment != tailSegment
+                    && segment != nextSegment) {
+                state[segment] = CLEAN;
+                numClean++;
+            } else {
+                state[segment] = DIRTY;
+            }
+        }
+
+        if (nextSegment == -1)
+            nextSegment = takeCleanSegment();
+    }
+
+    private void importFiles() {
+        String names = Config.getString("LogFileSystem.import", null);
+        FileSystem stub = Machine.stubFileSystem();
+        if (names == null || stub == null)
+            return;
+
+        for (StringTokenizer st = new StringTokenizer(names, ","); st.hasMoreTokens(); ) {
+            String name = st.nextToken();
+            if (directory.containsKey(name))
+                continue;
+
+            OpenFile source = stub.open(name, false);
+            if (source == null)
+                continue;
+            byte[] contents = Lib.loadFile(source);
+            source.close();
+
+            int inum = allocateInode();
+            if (contents == null || inum == -1)
+                continue;
+
+            Inode inode = new Inode(inum, blockSize);
+            inodes.put(inum, inode);
+            directory.put(name, inum);
+            directoryDirty = true;
+            writeFile(inode, 0, contents, 0, contents.length, true);
+            Lib.debug(dbgLog, "imported " + name);
+        }
+
+        if (directoryDirty)
+            takeCheckpoint();
+    }
+
+    /**
+     * Return an unused inode number, or -1 if there is none.
+     */
+    private int allocateInode() {
+        for (int inum = directoryInode + 1; inum < maxFiles; inum++) {
+            if (imap[inum] == 0 && !inodes.containsKey(inum))
+                return inum;
+        }
+        return -1;
+    }
+
+    private Inode loadInode(int inum) {
+        Inode inode = inodes.get(inum);
+        if (inode == null) {
+            Lib.assertTrue(imap[inum] != 0);
+
+            inode = Inode.parse(readBlock(imap[inum]), blockSize);
+            Lib.assertTrue(inode != null && inode.inum == inum,
+                    "corrupt inode " + inum);
+            if (inode.indirect != 0)
+                inode.parseIndirect(readBlock(inode.indirect));
+
+            inodes.put(inum, inode);
+
+            if (inum == directoryInode)
+                loadDirectory(inode);
+        }
+        return inode;
+    }
+
+    private void loadDirectory(Inode root) {
+        byte[] contents = new byte[root.length];
+        readFile(root, 0, contents, 0, contents.length);
+
+        directory.clear();
+        for (int offset = 0; offset < contents.length; ) {
+            int length = Lib.bytesToUnsignedShort(contents, offset);
+            String name = Lib.bytesToString(contents, offset + 2, length);
+            int inum = Lib.bytesToInt(contents, offset + 2 + length);
+            directory.put(name, inum);
+            offset += 2 + length + 4;
+        }
+    }
+
+    private void writeDirectory() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (Map.Entry<String, Integer> entry : directory.entrySet()) {
+            byte[] name = entry.getKey().getBytes();
+            out.write(name.length & 0xFF);
+            out.write(name.length >> 8);
+            out.write(name, 0, name.length);
+            out.write(Lib.bytesFromInt(entry.getValue()), 0, 4);
+        }
+
+        Inode root = loadInode(directoryInode);
+        byte[] contents = out.toByteArray();
+        truncate(root);
+        writeFile(root, 0, contents, 0, contents.length, false);
+        directoryDirty = false;
+    }
+
+    /**
+     * Release every block of a file, leaving it empty.
+     */
+    private void truncate(Inode inode) {
+        for (int i = 0; i < inode.blocks.length; i++) {
+            kill(inode.blocks[i]);
+            inode.blocks[i] = 0;
+        }
+        kill(inode.indirect);
+        inode.indirect = 0;
+        inode.indirectDirty = false;
+        inode.length = 0;
+        inode.dirty = true;
+    }
+
+    /**
+     * Release a removed file and log a tombstone for it.
+     */
+    private void freeInode(Inode inode) {
+        truncate(inode);
+        inodes.remove(inode.inum);
+        inode.dirty = false;
+
+        if (imap[inode.inum] != 0) {
+            kill(imap[inode.inum]);
+            imap[inode.inum] = 0;
+            mapDirty[inode.inum / mapEntriesPerBlock] = true;
+
+            byte[] tombstone = new byte[blockSize];
+            Inode.serializeTombstone(tombstone, inode.inum);
+            kill(append(inode.inum, INODE, tombstone));
+        }
+    }
+
+    private int readFile(Inode inode, int pos, byte[] buf, int offset,
+                         int length) {
+        if (pos < 0 || length < 0)
+            return -1;
+
+        int end = Math.min(pos + length, inode.length);
+        int amount = 0;
+        for (int p = pos; p < end; ) {
+            int index = p / blockSize, within = p % blockSize;
+            int chunk = Math.min(end - p, blockSize - within);
+
+            int address = inode.getBlock(index);
+            if (address == 0)
+                Arrays.fill(buf, offset + amount, offset + amount + chunk, (byte) 0);
+            else
+                System.arraycopy(readBlock(address), within, buf,
+                        offset + amount, chunk);
+
+            p += chunk;
+            amount += chunk;
+        }
+        return amount;
+    }
+
+    private int writeFile(Inode inode, int pos, byte[] buf, int offset,
+                          int length, boolean checkSpace) {
+        if (pos < 0 || length < 0)
+            return -1;
+
+        int end = Math.min(pos + length, inode.blocks.length * blockSize);
+        int amount = 0;
+        for (int p = pos; p < end; ) {
+            int index = p / blockSize, within = p % blockSize;
+            int chunk = Math.min(end - p, blockSize - within);
+
+            int address = inode.getBlock(index);
+            byte[] block = address != 0 ? pending.get(address) : null;
+            if (block == null) {
+                if (checkSpace && !ensureSpace())
+                    break;
+                // cleaning may have moved the block
+                address = inode.getBlock(index);
+
+                block = new byte[blockSize];
+                if (address != 0 && chunk < blockSize)
+                    System.arraycopy(readBlock(address), 0, block, 0, blockSize);
+
+                System.arraycopy(buf, offset + amount, block, within, chunk);
+                inode.setBlock(index, append(inode.inum, index, block));
+                kill(address);
+            } else {
+                // the block has not reached the disk yet, so update it there
+                System.arraycopy(buf, offset + amount, block, within, chunk);
+            }
+
+            p += chunk;
+            amount += chunk;
+            if (p > inode.length) {
+                inode.length = p;
+                inode.dirty = true;
+            }
+        }
+
+        return (amount == 0 && length > 0) ? -1 : amount;
+    }
+
+    /**
+     * Write every dirty inode, the directory and the inode map blocks to the
+     * log, and write out the partial segment.
+     */
+    private void flush() {
+        if (directoryDirty)
+            writeDirectory();
+
+        for (Inode inode : new ArrayList<Inode>(inodes.values())) {
+            if (inode.dirty)
+                writeInode(inode);
+        }
+
+        flushPartial();
+
+        if (segmentsSinceCheckpoint >= checkpointSegments)
+            takeCheckpoint();
+    }
+
+    private void writeInode(Inode inode) {
+        if (inode.indirectDirty) {
+            kill(inode.indirect);
+            inode.indirect = 0;
+            if (inode.usesIndirect()) {
+                byte[] block = new byte[blockSize];
+                inode.serializeIndirect(block);
+                inode.indirect = append(inode.inum, INDIRECT, block);
+            }
+            inode.indirectDirty = false;
+        }
+
+        byte[] block = new byte[blockSize];
+        inode.serialize(block);
+        kill(imap[inode.inum]);
+        imap[inode.inum] = append(inode.inum, INODE, block);
+        mapDirty[inode.inum / mapEntriesPerBlock] = true;
+        inode.dirty = false;
+    }
+
+    private void takeCheckpoint() {
+        if (directoryDirty)
+            writeDirectory();
+
+        for (Inode inode : new ArrayList<Inode>(inodes.values())) {
+            if (inode.dirty)
+                writeInode(inode);
+        }
+
+        for (int i = 0; i < numMapBlocks; i++) {
+            if (!mapDirty[i])
+                continue;
+
+            byte[] block = new byte[blockSize];
+            for (int j = 0; j < mapEntriesPerBlock
+                    && i * mapEntriesPerBlock + j < maxFiles; j++)
+                Lib.bytesFromInt(block, j * 4, imap[i * mapEntriesPerBlock + j]);
+
+            kill(mapAddress[i]);
+            mapAddress[i] = append(i, MAP, block);
+            mapDirty[i] = false;
+        }
+
+        flushPartial();
+
+        checkpointSeq++;
+        byte[] data = new byte[checkpointBlocks * blockSize];
+        Lib.bytesFromInt(data, 0, checkpointMagic);
+        longToBytes(data, 4, checkpointSeq);
+        Lib.bytesFromInt(data, 12, tailSegment);
+        Lib.bytesFromInt(data, 16, tailOffset);
+        Lib.bytesFromInt(data, 20, nextSegment);
+        longToBytes(data, 24, logSeq);
+        for (int i = 0; i < numMapBlocks; i++)
+            Lib.bytesFromInt(data, checkpointHeaderLength + i * 4, mapAddress[i]);
+        longToBytes(data, checkpointHeaderLength + numMapBlocks * 4, checkpointSeq);
+
+        writeBlocks(checkpointRegion * checkpointBlocks, checkpointBlocks, data);
+        checkpointRegion = 1 - checkpointRegion;
+        checkpointedSeq = logSeq;
+        segmentsSinceCheckpoint = 0;
+
+        // segments emptied since the last checkpoint can now be reused
+        for (int segment = 0; segment < numSegments; segment++) {
+            if (state[segment] == FREED) {
+                state[segment] = CLEAN;
+                numClean++;
+            }
+        }
+
+        Lib.debug(dbgLog, "checkpoint " + checkpointSeq + ", log at "
+                + tailSegment + "/" + tailOffset + ", " + numClean
+                + " clean segments");
+    }
+
+    /**
+     * Add a block to the partial segment being built.
+     *
+     * @param inum  the inode the block belongs to.
+     * @param kind  the index of the block in the file, or one of
+     *              <tt>INODE</tt>, <tt>INDIRECT</tt> and <tt>MAP</tt>.
+     * @param block the contents of the block.
+     * @return the address the block will be written at.
+     */
+    private int append(int inum, int kind, byte[] block) {
+        if (pendingInums.size() == Math.min(summaryEntries,
+                segmentBlocks - tailOffset - 1))
+            flushPartial();
+
+        int address = segmentStart(tailSegment) + tailOffset + 1
+                + pendingInums.size();
+
+        pendingInums.add(inum);
+        pendingKinds.add(kind);
+        pendingBlocks.add(block);
+        pending.put(address, block);
+        live[tailSegment]++;
+
+        return address;
+    }
+
+    /**
+     * Note that a block is no longer part of any file.
+     */
+    private void kill(int address) {
+        if (address == 0)
+            return;
+
+        int segment = segmentOf(address);
+        live[segment]--;
+        Lib.assertTrue(live[segment] >= 0);
+
+        if (live[segment] == 0 && state[segment] == DIRTY
+                && segment != tailSegment && segment != nextSegment)
+            state[segment] = FREED;
+    }
+
+    /**
+     * Write the partial segment being built to the disk.
+     */
+    private void flushPartial() {
+        int count = pendingInums.size();
+        if (count == 0)
+            return;
+
+        int address = segmentStart(tailSegment) + tailOffset;
+        byte[] data = new byte[(1 + count) * blockSize];
+        Lib.bytesFromInt(data, 0, summaryMagic);
+        longToBytes(data, 4, logSeq);
+        Lib.bytesFromInt(data, 12, count);
+        Lib.bytesFromInt(data, 16, nextSegment);
+        for (int i = 0; i < count; i++) {
+            Lib.bytesFromInt(data, summaryHeaderLength + i * 8, pendingInums.get(i));
+            Lib.bytesFromInt(data, summaryHeaderLength + i * 8 + 4, pendingKinds.get(i));
+            System.arraycopy(pendingBlocks.get(i), 0, data, (1 + i) * blockSize,
+                    blockSize);
+        }
+
+        writeBlocks(address, 1 + count, data);
+
+        for (int i = 0; i < count; i++)
+            cache.put(address + 1 + i, pendingBlocks.get(i));
+        pendingInums.clear();
+        pendingKinds.clear();
+        pendingBlocks.clear();
+        pending.clear();
+
+        logSeq++;
+        tailOffset += 1 + count;
+        writeTime[tailSegment] = Machine.timer().getTime();
+
+        if (segmentBlocks - tailOffset < 2) {
+            int previous = tailSegment;
+            tailSegment = nextSegment;
+            tailOffset = 0;
+            nextSegment = takeCleanSegment();
+            if (live[previous] == 0)
+                state[previous] = FREED;
+            segmentsSinceCheckpoint++;
+        }
+    }
+
+    private int takeCleanSegment() {
+        for (int segment = 0; segment < numSegments; segment++) {
+            if (state[segment] == CLEAN) {
+                state[segment] = DIRTY;
+                numClean--;
+                return segment;
+            }
+        }
+
+        Lib.assertNotReached("log file system out of segments");
+        return -1;
+    }
+
+    /**
+     * Make sure a writer can use another segment without eating into the
+     * reserve kept for metadata and cleaning.
+     *
+     * @return <tt>false</tt> if the file system is full.
+     */
+    private boolean ensureSpace() {
+        for (int attempt = 0; numClean <= reserveSegments; attempt++) {
+            if (attempt == numSegments || !clean(1))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Clean up to the specified number of segments, choosing those with the
+     * best ratio of space freed times age to cost.
+     *
+     * @return <tt>true</tt> if any segment was cleaned or reclaimed.
+     */
+    private boolean clean(int maxSegments) {
+        boolean reclaimed = false;
+        for (int segment = 0; segment < numSegments; segment++)
+            reclaimed |= state[segment] == FREED;
+
+        long now = Machine.timer().getTime();
+        for (int n = 0; n < maxSegments; n++) {
+            int best = -1;
+            double bestBenefit = 0;
+            for (int segment = 0; segment < numSegments; segment++) {
+                if (state[segment] != DIRTY || segment == tailSegment
+                        || segment == nextSegment
+                        || live[segment] >= segmentBlocks - 2)
+                    continue;
+
+                double u = (double) live[segment] / segmentBlocks;
+                double benefit = (1 - u) * (now - writeTime[segment] + 1) / (1 + u);
+                if (best == -1 || benefit > bestBenefit) {
+                    best = segment;
+                    bestBenefit = benefit;
+                }
+            }
+            if (best == -1)
+                break;
+
+            cleanSegment(best);
+            reclaimed = true;
+        }
+
+        if (reclaimed)
+            takeCheckpoint();
+        return reclaimed;
+    }
+
+    /**
+     * Move the live blocks of a segment to the end of the log.
+     */
+    private void cleanSegment(int segment) {
+        Lib.debug(dbgLog, "cleaning segment " + segment + ", "
+                + live[segment] + " live blocks");
+
+        int offset = 0;
+        long previousSeq = -1;
+        while (segmentBlocks - offset >= 2 && live[segment] > 0) {
+            int address = segmentStart(segment) + offset;
+            byte[] summary = readBlocks(address, 1);
+            int count = Lib.bytesToInt(summary, 12);
+            long seq = bytesToLong(summary, 4);
+            if (Lib.bytesToInt(summary, 0) != summaryMagic || seq <= previousSeq
+                    || count <= 0 || count > segmentBlocks - offset - 1)
+                break;
+
+            for (int i = 0; i < count; i++) {
+                int inum = Lib.bytesToInt(summary, summaryHeaderLength + i * 8);
+                int kind = Lib.bytesToInt(summary, summaryHeaderLength + i * 8 + 4);
+                relocate(inum, kind, address + 1 + i);
+            }
+
+            previousSeq = seq;
+            offset += 1 + count;
+        }
+
+        // the moved inodes and map blocks leave this segment at the checkpoint
+    }
+
+    private void relocate(int inum, int kind, int address) {
+        if (kind == MAP) {
+            if (inum < numMapBlocks && mapAddress[inum] == address)
+                mapDirty[inum] = true;
+            return;
+        }
+
+        if (inum < 0 || inum >= maxFiles
+                || (imap[inum] == 0 && !inodes.containsKey(inum)))
+            return;
+
+        Inode inode = loadInode(inum);
+        if (kind == INODE) {
+            if (imap[inum] == address)
+                inode.dirty = true;
+        } else if (kind == INDIRECT) {
+            if (inode.indirect == address) {
+                inode.indirectDirty = true;
+                inode.dirty = true;
+            }
+        } else if (kind >= 0 && inode.getBlock(kind) == address) {
+            byte[] block = new byte[blockSize];
+            System.arraycopy(readBlock(address), 0, block, 0, blockSize);
+            inode.setBlock(kind, append(inum, kind, block));
+            kill(address);
+        }
+    }
+
+    private void runCleaner() {
+        while (true) {
+            ThreadedKernel.alarm.waitUntil(cleanerInterval);
+
+            lock.acquire();
+            if (numClean < cleanThreshold)
+                clean(cleanThreshold - numClean);
+            else if (logSeq != checkpointedSeq || !pending.isEmpty())
+                takeCheckpoint();
+            lock.release();
+        }
+    }
+
+    private byte[] readBlock(int address) {
+        byte[] block = pending.get(address);
+        if (block == null)
+            block = cache.get(address);
+        if (block == null) {
+            block = readBlocks(address, 1);
+            cache.put(address, block);
+        }
+        return block;
+    }
+
+    private byte[] readBlocks(int address, int count) {
+        byte[] data = new byte[count * blockSize];
+        disk.readSectors(address * sectorsPerBlock, count * sectorsPerBlock,
+                data, 0);
+        return data;
+    }
+
+    private void writeBlocks(int address, int count, byte[] data) {
+        disk.writeSectors(address * sectorsPerBlock, count * sectorsPerBlock,
+                data, 0);
+    }
+
+    private void loadMapBlock(int index, byte[] block) {
+        for (int j = 0; j < mapEntriesPerBlock
+                && index * mapEntriesPerBlock + j < maxFiles; j++)
+            imap[index * mapEntriesPerBlock + j] = Lib.bytesToInt(block, j * 4);
+    }
+
+    private int segmentStart(int segment) {
+        return firstSegmentBlock + segment * segmentBlocks;
+    }
+
+    private int segmentOf(int address) {
+        return (address - firstSegmentBlock) / segmentBlocks;
+    }
+
+    private static long bytesToLong(byte[] array, int offset) {
+        return (Lib.bytesToInt(array, offset) & 0xFFFFFFFFL)
+                | ((long) Lib.bytesToInt(array, offset + 4) << 32);
+    }
+
+    private static void longToBytes(byte[] array, int offset, long value) {
+        Lib.bytesFromInt(array, offset, (int) value);
+        Lib.bytesFromInt(array, offset + 4, (int) (value >> 32));
+    }
+
+    /**
+     * A file in the log-structured file system.
+     */
+    private class LogOpenFile extends OpenFileWithPosition {
+        LogOpenFile(String name, Inode inode, boolean written) {
+            super(LogFileSystem.this, name);
+
+            this.inode = inode;
+            this.written = written;
+        }
+
+        public int read(int pos, byte[] buf, int offset, int length) {
+            lock.acquire();
+            int amount = inode == null ? -1
+                    : readFile(inode, pos, buf, offset, length);
+            lock.release();
+            return amount;
+        }
+
+        public int write(int pos, byte[] buf, int offset, int length) {
+            lock.acquire();
+            int amount = -1;
+            if (inode != null) {
+                amount = writeFile(inode, pos, buf, offset, length, true);
+                written = true;
+            }
+            lock.release();
+            return amount;
+        }
+
+        public int length() {
+            return inode == null ? -1 : inode.length;
+        }
+
+        public void close() {
+            lock.acquire();
+            if (inode != null) {
+                if (--inode.openCount == 0 && inode.unlinked)
+                    freeInode(inode);
+                if (written || inode.unlinked)
+                    flush();
+                inode = null;
+            }
+            lock.release();
+        }
+
+        private Inode inode;
+        private boolean written;
+    }
+
+    private SynchDisk disk;
+    private nachos.threads.Lock lock = new nachos.threads.Lock();
+    private boolean mounted = false;
+
+    private int blockSize, sectorsPerBlock, segmentBlocks, maxFiles;
+    private int checkpointSegments, cleanerInterval, cleanThreshold;
+    private int mapEntriesPerBlock, numMapBlocks, checkpointBlocks;
+    private int firstSegmentBlock, numSegments, summaryEntries;
+
+    private int[] imap, mapAddress;
+    private boolean[] mapDirty;
+    private HashMap<Integer, Inode> inodes = new HashMap<Integer, Inode>();
+    private HashMap<String, Integer> directory = new HashMap<String, Integer>();
+    private boolean directoryDirty = false;
+
+    private int[] live, state;
+    private long[] writeTime;
+    private int numClean;
+    private int tailSegment, tailOffset, nextSegment;
+    private long logSeq = 1, checkpointSeq = 0, checkpointedSeq = 0;
+    private int checkpointRegion = 0, segmentsSinceCheckpoint = 0;
+
+    private ArrayList<Integer> pendingInums = new ArrayList<Integer>();
+    private ArrayList<Integer> pendingKinds = new ArrayList<Integer>();
+    private ArrayList<byte[]> pendingBlocks = new ArrayList<byte[]>();
+    private HashMap<Integer, byte[]> pending = new HashMap<Integer, byte[]>();
+    private LinkedHashMap<Integer, byte[]> cache;
+
+    private static final int CLEAN = 0, DIRTY = 1, FREED = 2;
+    private static final int INODE = -1, INDIRECT = -2, MAP = -3;
+
+    private static final int directoryInode = 0;
+    private static final int reserveSegments = 2;
+    private static final int maxNameLength = 256;
+
+    private static final int checkpointMagic = 0x4c465343;
+    private static final int checkpointHeaderLength = 32;
+    private static final int summaryMagic = 0x4c465353;
+    private static final int summaryHeaderLength = 20;
+
+    private static final char dbgLog = 'l';
+}
@@ -0,0 +1,338 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import nachos.security.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * A simulated hard disk, backed by an image file on the host. The disk holds
+ * <tt>numTracks</tt> tracks of <tt>sectorsPerTrack</tt> sectors each, and
+ * sectors are read and written whole.
+ *
+ * <p>
+ * Like the console, the disk is asynchronous: <tt>readSector()</tt> and
+ * <tt>writeSector()</tt> start a request and return at once, and the disk
+ * interrupt handler is called when the request completes. Only one request
+ * may be outstanding at a time, but a request may cover a run of consecutive
+ * sectors.
+ *
+ * <p>
+ * The time a request takes depends on where the head is. The head first
+ * seeks to the track holding the sector; crossing every track takes
+ * <tt>Stats.SeekTime</tt> ticks, and shorter seeks take proportionally less.
+ * The disk then waits for the sector to rotate under the head, which takes up
+ * to <tt>Stats.RotationTime</tt> ticks, and finally transfers the sector
+ * while it passes. The platter rotates continuously with simulated time, so
+ * requests for consecutive sectors issued without delay are cheap. A
+ * multi-sector request transfers its sectors back to back, moving the head to
+ * the next track when it crosses a track boundary.
+ *
+ * <p>
+ * The geometry is set by the <tt>Disk.numTracks</tt>,
+ * <tt>Disk.sectorsPerTrack</tt> and <tt>Disk.sectorSize</tt> keys, and the
+ * image by <tt>Disk.imageFile</tt>. An image that is missing or does not match
+ * the geometry is replaced by a blank one.
+ */
+public final class Disk {
+    /**
+     * Allocate a new disk.
+     *
+     * @param    privilege encapsulates privileged access to the Nachos
+     * machine.
+     * @param    imageFile    the host file holding the contents of the disk.
+     */
+    public Disk(Privilege privilege, final File imageFile) {
+        System.out.print(" disk");
+
+        this.privilege = privilege;
+
+        numTracks = Config.getInteger("Disk.numTracks", 32);
+        sectorsPerTrack = Config.getInteger("Disk.sectorsPerTrack", 32);
+        sectorSize = Config.getInteger("Disk.sectorSize", 128);
+        Lib.assertTrue(numTracks > 0 && sectorsPerTrack > 0 && sectorSize > 0);
+
+        numSectors = numTracks * sectorsPerTrack;
+
+        privilege.doPrivileged(new Runnable() {
+            public void run() {
+                openImage(imageFile);
+            }
+        });
+
+        privilege.addExitNotificationHandler(new Runnable() {
+            public void run() {
+                closeImage();
+            }
+        });
+
+        completion = new Runnable() {
+            public void run() {
+                requestDone();
+            }
+        };
+    }
+
+    private void openImage(File imageFile) {
+        long length = headerLength + (long) numSectors * sectorSize;
+
+        try {
+            image = new RandomAccessFile(imageFile, "rw");
+
+            if (image.length() != length || image.readInt() != magicNumber) {
+                Lib.debug(dbgDisk, "formatting disk image " + imageFile);
+
+                image.setLength(0);
+                image.setLength(length);
+                image.seek(0);
+                image.writeInt(magicNumber);
+            }
+        } catch (IOException e) {
+            Lib.assertNotReached("cannot open disk image " + imageFile);
+        }
+    }
+
+    private void closeImage() {
+        try {
+            image.close();
+        } catch (IOException e) {
+        }
+    }
+
+    /**
+     * Set this disk's interrupt handler. The handler is called each time a
+     * request completes.
+     *
+     * @param    interruptHandler    the disk's interrupt handler.
+     */
+    public void setInterruptHandler(Runnable interruptHandler) {
+        this.interruptHandler = interruptHandler;
+    }
+
+    /**
+     * Start reading a sector into a buffer. The disk interrupt handler is
+     * called when the data is available.
+     *
+     * @param    sector    the sector to read.
+     * @param    data    the buffer to read into.
+     * @param    offset    the first byte of the buffer to write.
+     */
+    public void readSector(int sector, byte[] data, int offset) {
+        readSectors(sector, 1, data, offset);
+    }
+
+    /**
+     * Start reading a run of consecutive sectors into a buffer. The disk
+     * interrupt handler is called once, when all the data is available.
+     *
+     * @param    sector    the first sector to read.
+     * @param    count    the number of sectors to read.
+     * @param    data    the buffer to read into.
+     * @param    offset    the first byte of the buffer to write.
+     */
+    public void readSectors(int sector, int count, byte[] data, int offset) {
+        startRequest(sector, count, data, offset);
+
+        transfer(sector, count, data, offset, false);
+        privilege.stats.numDiskReads += count;
+    }
+
+    /**
+     * Start writing a sector from a buffer. The disk interrupt handler is
+     * called when the data has reached the disk.
+     *
+     * @param    sector    the sector to write.
+     * @param    data    the buffer to write from.
+     * @param    offset    the first byte of the buffer to read.
+     */
+    public void writeSector(int sector, byte[] data, int offset) {
+        writeSectors(sector, 1, data, offset);
+    }
+
+    /**
+     * Start writing a run of consecutive sectors from a buffer. The disk
+     * interrupt handler is called once, when all the data has reached the
+     * disk.
+     *
+     * @param    sector    the first sector to write.
+     * @param    count    the number of sectors to write.
+     * @param    data    the buffer to write from.
+     * @param    offset    the first byte of the buffer to read.
+     */
+    public void writeSectors(int sector, int count, byte[] data, int offset) {
+        startRequest(sector, count, data, offset);
+
+        transfer(sector, count, data, offset, true);
+        privilege.stats.numDiskWrites += count;
+    }
+
+    private void startRequest(int sector, int count, byte[] data, int offset) {
+        Lib.assertTrue(!busy, "disk request already outstanding");
+        Lib.assertTrue(count > 0 && sector >= 0 && sector + count <= numSectors);
+        Lib.assertTrue(offset >= 0 && offset + count * sectorSize <= data.length);
+
+        int latency = latency(sector, count);
+
+        Lib.debug(dbgDisk, "sectors " + sector + "+" + count + ": track "
+                + headTrack + " -> " + trackOf(sector) + ", " + latency
+                + " ticks");
+
+        busy = true;
+        headTrack = trackOf(sector + count - 1);
+        privilege.interrupt.schedule(latency, "disk", completion);
+    }
+
+    private void transfer(final int sector, final int count, final byte[] data,
+                          final int offset, final boolean write) {
+        privilege.doPrivileged(new Runnable() {
+            public void run() {
+                try {
+                    image.seek(headerLength + (long) sector * sectorSize);
+                    if (write)
+                        image.write(data, offset, count * sectorSize);
+                    else
+                        image.readFully(data, offset, count * sectorSize);
+                } catch (IOException e) {
+                    Lib.assertNotReached("disk image I/O failed");
+                }
+            }
+        });
+    }
+
+    private void requestDone() {
+        Lib.assertTrue(busy);
+
+        busy = false;
+
+        if (interruptHandler != null)
+            interruptHandler.run();
+    }
+
+    /**
+     * Return the number of ticks a request for the specified sector would
+     * take if it were started now.
+     *
+     * @param    sector    the sector to access.
+     * @return the time to seek to the sector, wait for it and transfer it.
+     */
+    public int latency(int sector) {
+        Lib.assertTrue(sector >= 0 && sector < numSectors);
+
+        int distance = Math.abs(trackOf(sector) - headTrack);
+        int seek = Lib.divRoundUp(distance * Stats.SeekTime, numTracks);
+
+        // where the platter will be once the seek completes, scaled by sectorsPerTrack
+        long now = privilege.stats.totalTicks + seek;
+        long angle = (now % Stats.RotationTime) * sectorsPerTrack;
+        long start = (long) (sector % sectorsPerTrack) * Stats.RotationTime;
+        long rotation = (start - angle + (long) Stats.RotationTime * sectorsPerTrack)
+                % ((long) Stats.RotationTime * sectorsPerTrack);
+
+        int wait = Lib.divRoundUp((int) rotation, sectorsPerTrack);
+        int transfer = Lib.divRoundUp(Stats.RotationTime, sectorsPerTrack);
+
+        return seek + wait + transfer;
+    }
+
+    /**
+     * Return the number of ticks a request for a run of consecutive sectors
+     * would take if it were started now.
+     *
+     * @param    sector    the first sector to access.
+     * @param    count    the number of sectors to access.
+     * @return the time to seek to the first sector, wait for it and transfer
+     * the whole run.
+     */
+    public int latency(int sector, int count) {
+        Lib.assertTrue(count > 0 && sector + count <= numSectors);
+
+        int trackSwitches = trackOf(sector + count - 1) - trackOf(sector);
+
+        return latency(sector)
+                + (count - 1) * Lib.divRoundUp(Stats.RotationTime, sectorsPerTrack)
+                + trackSwitches * Lib.divRoundUp(Stats.SeekTime, numTracks);
+    }
+
+    /**
+     * Return the track holding the specified sector.
+     *
+     * @param    sector    a sector number.
+     * @return the track the sector is on.
+     */
+    public int trackOf(int sector) {
+        return sector / sectorsPerTrack;
+    }
+
+    /**
+     * Return the track the head is on, or is moving to if a request is
+     * outstanding.
+     *
+     * @return the current track of the head.
+     */
+    public int getHeadTrack() {
+        return headTrack;
+    }
+
+    /**
+     * Return <tt>true</tt> if a request is outstanding.
+     *
+     * @return <tt>true</tt> if the disk is busy.
+     */
+    public boolean isBusy() {
+        return busy;
+    }
+
+    /**
+     * Return the number of sectors on this disk.
+     *
+     * @return the number of sectors.
+     */
+    public int getNumSectors() {
+        return numSectors;
+    }
+
+    /**
+     * Return the number of tracks on this disk.
+     *
+     * @return the number of tracks.
+     */
+    public int getNumTracks() {
+        return numTracks;
+    }
+
+    /**
+     * Return the number of sectors on each track.
+     *
+     * @return the number of sectors per track.
+     */
+    public int getSectorsPerTrack() {
+        return sectorsPerTrack;
+    }
+
+    /**
+     * Return the size of a sector in bytes.
+     *
+     * @return the sector size.
+     */
+    public int getSectorSize() {
+        return sectorSize;
+    }
+
+    private Privilege privilege;
+    private RandomAccessFile image;
+
+    private int numTracks, sectorsPerTrack, sectorSize, numSectors;
+    private int headTrack = 0;
+    private boolean busy = false;
+
+    private Runnable completion;
+    private Runnable interruptHandler = null;
+
+    private static final int headerLength = 4;
+    private static final int magicNumber = 0x456789ab;
+
+    private static final char dbgDisk = 'k';
+}
@@ -175,8 +175,16 @@ public final class Machine {
         if (Config.getBoolean("Machine.console"))
             console = new StandardConsole(privilege);
 
-        if (Config.getBoolean("Machine.stubFileSystem"))
-            stubFileSystem = new StubFileSystem(privilege, testDirectory);
+        if (Config.getBoolean("Machine.stubFileSystem")) {
+            if (Config.getBoolean("Machine.ramFileSystem", false))
+                stubFileSystem = new RamFileSystem(privilege, testDirectory);
+            else
+                stubFileSystem = new StubFileSystem(privilege, testDirectory);
+        }
+
+        if (Config.getBoolean("Machine.disk"))
+            disk = new Disk(privilege, new File(baseDirectory,
+                    Config.getString("Disk.imageFile", "DISK")));
 
         if (Config.getBoolean("Machine.networkLink"))
             networkLink = new NetworkLink(privilege);
@@ -334,7 +342,8 @@ public final class Machine {
     }
 
     /**
-     * Return the stub filesystem.
+     * Return the stub filesystem. This is a <tt>RamFileSystem</tt> if
+     * <tt>Machine.ramFileSystem</tt> is set.
      *
      * @return the stub file system, or <tt>null</tt> if it is not present.
      */
@@ -342,6 +351,26 @@ public final class Machine {
         return stubFileSystem;
     }
 
+    /**
+     * Return the hard disk.
+     *
+     * @return the hard disk, or <tt>null</tt> if it is not present.
+     */
+    public static Disk disk() {
+        return disk;
+    }
+
+    /**
+     * Return the statistics kept by the machine. The kernel may add to the
+     * counters of the devices it implements itself, such as caches; it must
+     * not change the tick counts.
+     *
+     * @return the machine statistics.
+     */
+    public static Stats stats() {
+        return stats;
+    }
+
     /**
      * Return the network link.
      *
@@ -366,6 +395,7 @@ public final class Machine {
     private static Processor processor = null;
     private static SerialConsole console = null;
     private static FileSystem stubFileSystem = null;
+    private static Disk disk = null;
     private static NetworkLink networkLink = null;
     private static AutoGrader autoGrader = null;
 
@@ -0,0 +1,223 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import nachos.security.*;
+import nachos.threads.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.StringTokenizer;
+
+/**
+ * A file system that keeps every file in memory, for runs that should not
+ * touch the host's files. It replaces the stub file system when
+ * <tt>Machine.ramFileSystem</tt> is set, and its contents are lost when Nachos
+ * exits.
+ *
+ * <p>
+ * A file is a list of pages of <tt>Processor.pageSize</tt> bytes, so it grows
+ * without copying what it already holds. Pages are only allocated when they
+ * are written, and a page that was never written reads as zeros.
+ *
+ * <p>
+ * At boot, the files of the test directory whose names match one of the
+ * patterns in <tt>RamFileSystem.preload</tt> are copied in. The patterns are
+ * a comma-separated list in which <tt>*</tt> matches any run of characters;
+ * the default is <tt>*.coff</tt>, so the test programs can be run. Unlike the
+ * stub file system, operations take no simulated time, unless
+ * <tt>RamFileSystem.delay</tt> sets a number of ticks for each.
+ */
+public class RamFileSystem implements FileSystem {
+    /**
+     * Allocate a new RAM file system, preloading files from the host.
+     *
+     * @param    privilege encapsulates privileged access to the Nachos
+     * machine.
+     * @param    directory    the directory to preload files from.
+     */
+    public RamFileSystem(Privilege privilege, final File directory) {
+        delay = Config.getInteger("RamFileSystem.delay", 0);
+        Lib.assertTrue(delay >= 0);
+
+        final String patterns = Config.getString("RamFileSystem.preload", "*.coff");
+
+        privilege.doPrivileged(new Runnable() {
+            public void run() {
+                preload(directory, patterns);
+            }
+        });
+    }
+
+    private void preload(File directory, String patterns) {
+        String[] names = directory.list();
+        if (names == null)
+            return;
+
+        for (String name : names) {
+            boolean wanted = false;
+            for (StringTokenizer st = new StringTokenizer(patterns, ",");
+                 st.hasMoreTokens() && !wanted; )
+                wanted = matches(st.nextToken(), name, 0, 0);
+
+            File f = new File(directory, name);
+            if (!wanted || !f.isFile() || f.length() > Integer.MAX_VALUE)
+                continue;
+
+            try {
+                RandomAccessFile host = new RandomAccessFile(f, "r");
+                byte[] contents = new byte[(int) host.length()];
+                host.readFully(contents);
+                host.close();
+
+                RamFile file = new RamFile();
+                file.write(0, contents, 0, contents.length);
+                files.put(name, file);
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    /**
+     * Return <tt>true</tt> if a name matches a pattern, from the specified
+     * positions on.
+     */
+    private static boolean matches(String pattern, String name, int p, int n) {
+        if (p == pattern.length())
+            return n == name.length();
+
+        if (pattern.charAt(p) == '*') {
+            for (int i = n; i <= name.length(); i++) {
+                if (matches(pattern, name, p + 1, i))
+                    return true;
+            }
+            return false;
+        }
+
+        return n < name.length() && pattern.charAt(p) == name.charAt(n)
+                && matches(pattern, name, p + 1, n + 1);
+    }
+
+    public OpenFile open(String name, boolean truncate) {
+        delay();
+
+        RamFile file = files.get(name);
+        if (file == null) {
+            if (!truncate)
+                return null;
+
+            file = new RamFile();
+            files.put(name, file);
+        } else if (truncate) {
+            file.truncate();
+        }
+
+        return new RamOpenFile(name, file);
+    }
+
+    public boolean remove(String name) {
+        delay();
+
+        // open files keep the contents until they are closed
+        return files.remove(name) != null;
+    }
+
+    private void delay() {
+        if (delay > 0)
+            ThreadedKernel.alarm.waitUntil(delay);
+    }
+
+    /**
+     * The contents of a file.
+     */
+    private static class RamFile {
+        int read(int pos, byte[] buf, int offset, int length) {
+            int amount = Math.max(0, Math.min(length, this.length - pos));
+
+            for (int i = 0; i < amount; ) {
+                int page = (pos + i) / pageSize, within = (pos + i) % pageSize;
+                int chunk = Math.min(amount - i, pageSize - within);
+
+                byte[] data = page < pages.size() ? pages.get(page) : null;
+                if (data != null)
+                    System.arraycopy(data, within, buf, offset + i, chunk);
+                else
+                    Arrays.fill(buf, offset + i, offset + i + chunk, (byte) 0);
+
+                i += chunk;
+            }
+
+            return amount;
+        }
+
+        void write(int pos, byte[] buf, int offset, int length) {
+            for (int i = 0; i < length; ) {
+                int page = (pos + i) / pageSize, within = (pos + i) % pageSize;
+                int chunk = Math.min(length - i, pageSize - within);
+
+                while (pages.size() <= page)
+                    pages.add(null);
+                if (pages.get(page) == null)
+                    pages.set(page, new byte[pageSize]);
+
+                System.arraycopy(buf, offset + i, pages.get(page), within, chunk);
+                i += chunk;
+            }
+
+            this.length = Math.max(this.length, pos + length);
+        }
+
+        void truncate() {
+            pages.clear();
+            length = 0;
+        }
+
+        int length = 0;
+        ArrayList<byte[]> pages = new ArrayList<byte[]>();
+    }
+
+    private class RamOpenFile extends OpenFileWithPosition {
+        RamOpenFile(String name, RamFile file) {
+            super(RamFileSystem.this, name);
+
+            this.file = file;
+        }
+
+        public int read(int pos, byte[] buf, int offset, int length) {
+            if (file == null || pos < 0 || length < 0)
+                return -1;
+
+            delay();
+            return file.read(pos, buf, offset, length);
+        }
+
+        public int write(int pos, byte[] buf, int offset, int length) {
+            if (file == null || pos < 0 || length < 0
+                    || (long) pos + length > Integer.MAX_VALUE)
+                return -1;
+
+            delay();
+            file.write(pos, buf, offset, length);
+            return length;
+        }
+
+        public int length() {
+            return file == null ? -1 : file.length;
+        }
+
+        public void close() {
+            file = null;
+        }
+
+        private RamFile file;
+    }
+
+    private int delay;
+    private HashMap<String, RamFile> files = new HashMap<String, RamFile>();
+
+    private static final int pageSize = Processor.pageSize;
+}
@@ -29,6 +29,11 @@ public final class Stats {
                 + ", TLB misses " + numTLBMisses);
         System.out.println("Network I/O: received " + numPacketsReceived
                 + ", sent " + numPacketsSent);
+        if (numBufferCacheHits + numBufferCacheMisses > 0)
+            System.out.println("Buffer cache: hits " + numBufferCacheHits
+                    + ", misses " + numBufferCacheMisses
+                    + ", hit ratio " + (100 * numBufferCacheHits
+                    / (numBufferCacheHits + numBufferCacheMisses)) + "%");
     }
 
     /**
@@ -77,6 +82,15 @@ public final class Stats {
      * The total number of packets Nachos has received from the network.
      */
     public int numPacketsReceived = 0;
+    /**
+     * The total number of file blocks served from the kernel's buffer cache.
+     */
+    public int numBufferCacheHits = 0;
+    /**
+     * The total number of file blocks the kernel's buffer cache had to read
+     * from the file system.
+     */
+    public int numBufferCacheMisses = 0;
 
     /**
      * The amount to advance simulated time after each user instructions is
@@ -8,10 +8,38 @@ import nachos.threads.*;
 import java.io.File;
 import java.io.RandomAccessFile;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.PrivilegedActionException;
+import java.security.PrivilegedExceptionAction;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 
 /**
  * This class implements a file system that redirects all requests to the host
  * operating system's file system.
+ *
+ * <p>
+ * There are two ways of reaching host files, chosen by the
+ * <tt>StubFileSystem.backend</tt> key. The default, <tt>file</tt>, gives each
+ * open file its own <tt>RandomAccessFile</tt>. With <tt>channel</tt>, all
+ * open files on a name share one <tt>FileChannel</tt> and use positional
+ * reads and writes. A handle stays open while any file uses it, even after
+ * its name is removed; once unused, it is kept in a cache of at most
+ * <tt>StubFileSystem.maxHostFiles</tt> handles in case the name is opened
+ * again. Host files no larger than
+ * <tt>StubFileSystem.mapThreshold</tt> bytes are read through a
+ * <tt>MappedByteBuffer</tt>. Either way, at most
+ * <tt>StubFileSystem.maxOpenFiles</tt> files may be open at once.
+ *
+ * <p>
+ * Opening and removing files behaves like a device. <tt>openAsync()</tt> and
+ * <tt>removeAsync()</tt> do the host work at once and return a request, which
+ * an interrupt completes <tt>StubFileSystem.latency</tt> ticks later. Any
+ * number of requests may be outstanding, and a thread may start several
+ * before waiting for any. <tt>open()</tt> and <tt>remove()</tt> start a
+ * request and wait for it.
  */
 public class StubFileSystem implements FileSystem {
     /**
@@ -24,30 +52,149 @@ public class StubFileSystem implements FileSystem {
     public StubFileSystem(Privilege privilege, File directory) {
         this.privilege = privilege;
         this.directory = directory;
+
+        useChannels = Config.getString("StubFileSystem.backend", "file")
+                .equals("channel");
+        maxOpenFiles = Config.getInteger("StubFileSystem.maxOpenFiles",
+                useChannels ? 1024 : 16);
+        maxHostFiles = Config.getInteger("StubFileSystem.maxHostFiles", 16);
+        mapThreshold = Config.getInteger("StubFileSystem.mapThreshold", 1 << 16);
+        latency = Config.getInteger("StubFileSystem.latency", 1000);
+        Lib.assertTrue(maxOpenFiles > 0 && maxHostFiles > 0 && latency > 0);
+
+        hostFiles = new LinkedHashMap<String, HostFile>(16, 0.75f, true);
     }
 
     public OpenFile open(String name, boolean truncate) {
-        if (!checkName(name))
-            return null;
+        Request request = openAsync(name, truncate);
+        request.await();
+        return request.getFile();
+    }
 
-        delay();
+    public boolean remove(String name) {
+        Request request = removeAsync(name);
+        request.await();
+        return request.succeeded();
+    }
 
+    /**
+     * Start opening a file. The host file is opened before this returns, so
+     * later requests see its effect, but the open file is only handed over
+     * when the request completes. The caller must wait for the request and
+     * close the file it returns.
+     *
+     * @param    name    the name of the file to open.
+     * @param    truncate    if <tt>true</tt>, the file is created if needed
+     * and truncated.
+     * @return the request, whose file is <tt>null</tt> if the file could not
+     * be opened.
+     */
+    public Request openAsync(String name, boolean truncate) {
+        if (!checkName(name))
+            return Request.failed();
+
+        OpenFile file;
         try {
-            return new StubOpenFile(name, truncate);
+            if (useChannels)
+                file = new ChannelOpenFile(name, truncate);
+            else
+                file = new StubOpenFile(name, truncate);
         } catch (IOException e) {
-            return null;
+            file = null;
         }
+
+        return submit(new Request(file, file != null));
     }
 
-    public boolean remove(String name) {
+    /**
+     * Start removing a file. The host file is removed before this returns.
+     *
+     * @param    name    the name of the file to remove.
+     * @return the request, which succeeds if the file was removed.
+     */
+    public Request removeAsync(String name) {
         if (!checkName(name))
-            return false;
-
-        delay();
+            return Request.failed();
+
+        // the name no longer leads to the handle, but files still open on
+        // it keep using it, as they would a RandomAccessFile
+        HostFile host = hostFiles.remove(name);
+        if (host != null) {
+            if (host.references == 0)
+                host.close();
+            else
+                host.removed = true;
+        }
 
         FileRemover fr = new FileRemover(new File(directory, name));
         privilege.doPrivileged(fr);
-        return fr.successful;
+        return submit(new Request(null, fr.successful));
+    }
+
+    private Request submit(final Request request) {
+        privilege.interrupt.schedule(latency, "stub file system", new Runnable() {
+            public void run() {
+                request.complete();
+            }
+        });
+        return request;
+    }
+
+    /**
+     * An open or remove operation started by <tt>openAsync()</tt> or
+     * <tt>removeAsync()</tt>.
+     */
+    public static class Request {
+        private Request(OpenFile file, boolean success) {
+            this.file = file;
+            this.success = success;
+        }
+
+        private static Request failed() {
+            Request request = new Request(null, false);
+            request.complete();
+            return request;
+        }
+
+        private void complete() {
+            done = true;
+            completion.V();
+        }
+
+        /**
+         * Return <tt>true</tt> if the request has completed.
+         */
+        public boolean isDone() {
+            return done;
+        }
+
+        /**
+         * Wait for the request to complete. May be called more than once.
+         */
+        public void await() {
+            completion.P();
+            completion.V();
+        }
+
+        /**
+         * Return <tt>true</tt> if the operation succeeded. Only meaningful
+         * once the request has completed.
+         */
+        public boolean succeeded() {
+            return done && success;
+        }
+
+        /**
+         * Return the file opened by the request, or <tt>null</tt> if it has
+         * not completed or the file could not be opened.
+         */
+        public OpenFile getFile() {
+            return done ? file : null;
+        }
+
+        private OpenFile file;
+        private boolean success, done = false;
+        private Semaphore completion = new Semaphore(0);
     }
 
     private class FileRemover implements Runnable {
@@ -159,8 +306,219 @@ public class StubFileSystem implements FileSystem {
         private boolean open = false;
     }
 
+    /**
+     * A host file reached through a <tt>FileChannel</tt>, shared by every
+     * open file on its name.
+     */
+    private class HostFile {
+        HostFile(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        /**
+         * Return a mapping of the whole file, or <tt>null</tt> if it is too
+         * large to map.
+         */
+        ByteBuffer mapping() throws IOException {
+            long size = channel.size();
+            if (size > mapThreshold || size == 0)
+                return null;
+
+            // the file may have changed size since it was mapped
+            if (map == null || map.capacity() != size) {
+                final long length = size;
+                try {
+                    map = (MappedByteBuffer) privilege.doPrivileged(
+                            new PrivilegedExceptionAction<MappedByteBuffer>() {
+                                public MappedByteBuffer run() throws IOException {
+                                    return channel.map(FileChannel.MapMode.READ_ONLY,
+                                            0, length);
+                                }
+                            });
+                } catch (PrivilegedActionException e) {
+                    // some hosts cannot map files under the Nachos security
+                    // manager; read through the channel from now on
+                    Lib.debug(dbgStub, "\tmapping disabled: " + e.getException());
+                    mapThreshold = 0;
+                    return null;
+                }
+            }
+            return map.duplicate();
+        }
+
+        void close() {
+            map = null;
+            try {
+                channel.close();
+            } catch (IOException e) {
+            }
+        }
+
+        FileChannel channel;
+        MappedByteBuffer map = null;
+        int references = 0;     // open files using this handle
+        boolean removed = false;    // no longer reachable by name
+    }
+
+    /**
+     * Return the host file with the specified name, opening it if it has no
+     * handle yet.
+     *
+     * @param name   the name of the file.
+     * @param create <tt>true</tt> to create the file if it does not exist.
+     * @return the host file, or <tt>null</tt> if it could not be opened.
+     */
+    private HostFile getHostFile(String name, final boolean create) {
+        HostFile host = hostFiles.get(name);
+        if (host != null)
+            return host;
+
+        final File f = new File(directory, name);
+        final FileChannel[] channel = new FileChannel[1];
+        privilege.doPrivileged(new Runnable() {
+            public void run() {
+                try {
+                    if (create || f.exists())
+                        channel[0] = new RandomAccessFile(f, "rw").getChannel();
+                } catch (IOException e) {
+                }
+            }
+        });
+        if (channel[0] == null)
+            return null;
+
+        host = new HostFile(channel[0]);
+        hostFiles.put(name, host);
+        trimHostFiles();
+        return host;
+    }
+
+    /**
+     * Drop a reference to a host file. An unused handle on a removed name is
+     * closed; others stay cached.
+     */
+    private void releaseHostFile(HostFile host) {
+        Lib.assertTrue(host.references > 0);
+        if (--host.references > 0)
+            return;
+
+        if (host.removed)
+            host.close();
+        else
+            trimHostFiles();
+    }
+
+    /**
+     * Close the least recently used handles that no open file is using, until
+     * at most <tt>maxHostFiles</tt> handles are open or only used ones are
+     * left.
+     */
+    private void trimHostFiles() {
+        Iterator<HostFile> i = hostFiles.values().iterator();
+        while (hostFiles.size() > maxHostFiles && i.hasNext()) {
+            HostFile host = i.next();
+            if (host.references == 0) {
+                host.close();
+                i.remove();
+            }
+        }
+    }
+
+    private class ChannelOpenFile extends OpenFileWithPosition {
+        ChannelOpenFile(String name, boolean truncate) throws IOException {
+            super(StubFileSystem.this, name);
+
+            if (openCount == maxOpenFiles)
+                throw new IOException();
+
+            host = getHostFile(name, truncate);
+            if (host == null)
+                throw new IOException();
+            host.references++;
+            if (truncate) {
+                host.map = null;
+                try {
+                    host.channel.truncate(0);
+                } catch (IOException e) {
+                    releaseHostFile(host);
+                    throw e;
+                }
+            }
+
+            open = true;
+            openCount++;
+        }
+
+        public int read(int pos, byte[] buf, int offset, int length) {
+            if (!open || pos < 0)
+                return -1;
+
+            delay();
+
+            try {
+                ByteBuffer mapping = host.mapping();
+                if (mapping != null) {
+                    int amount = Math.max(0, Math.min(length, mapping.capacity() - pos));
+                    mapping.position(Math.min(pos, mapping.capacity()));
+                    mapping.get(buf, offset, amount);
+                    return amount;
+                }
+
+                ByteBuffer buffer = ByteBuffer.wrap(buf, offset, length);
+                while (buffer.hasRemaining()) {
+                    if (host.channel.read(buffer, pos + buffer.position() - offset) < 0)
+                        break;
+                }
+                return buffer.position() - offset;
+            } catch (IOException e) {
+                return -1;
+            }
+        }
+
+        public int write(int pos, byte[] buf, int offset, int length) {
+            if (!open || pos < 0)
+                return -1;
+
+            delay();
+
+            try {
+                ByteBuffer buffer = ByteBuffer.wrap(buf, offset, length);
+                while (buffer.hasRemaining())
+                    host.channel.write(buffer, pos + buffer.position() - offset);
+                return length;
+            } catch (IOException e) {
+                return -1;
+            }
+        }
+
+        public int length() {
+            if (!open)
+                return -1;
+
+            try {
+                return (int) host.channel.size();
+            } catch (IOException e) {
+                return -1;
+            }
+        }
+
+        public void close() {
+            if (open) {
+                open = false;
+                openCount--;
+                releaseHostFile(host);
+            }
+        }
+
+        private HostFile host;
+        private boolean open = false;
+    }
+
     private int openCount = 0;
-    private static final int maxOpenFiles = 16;
+    private int maxOpenFiles, maxHostFiles, mapThreshold, latency;
+    private boolean useChannels;
+    private static final char dbgStub = 'f';
+    private LinkedHashMap<String, HostFile> hostFiles;
 
     private Privilege privilege;
     private File directory;
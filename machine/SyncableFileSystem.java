@@ -0,0 +1,16 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+/**
+ * A file system that may hold updates in memory, and can be told to make
+ * them durable. The kernel syncs its file system before it halts the
+ * machine.
+ */
+public interface SyncableFileSystem extends FileSystem {
+    /**
+     * Write every update made so far to stable storage, so that it survives
+     * a halt.
+     */
+    public void sync();
+}
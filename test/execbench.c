@@ -0,0 +1,43 @@
+/* execbench.c
+ *	Exec latency benchmark: runs a program over and over, joining each
+ *	run before starting the next.
+ *
+ *	Usage: execbench [count [program]]
+ *
+ *	Defaults to running echo.coff 10000 times. Compare the total ticks
+ *	printed when Nachos halts between kernels; with
+ *	UserKernel.traceSyscalls set, the syscall 2 (exec) line of the latency
+ *	summary gives the cost of each exec.
+ */
+
+#include "syscall.h"
+#include "stdio.h"
+#include "stdlib.h"
+
+int main(int argc, char** argv)
+{
+  int count = 10000, i, pid, status, failed = 0;
+  char *prog = "echo.coff";
+  char *args[1];
+
+  if (argc > 1)
+    count = atoi(argv[1]);
+  if (argc > 2)
+    prog = argv[2];
+
+  args[0] = prog;
+
+  for (i=0; i<count; i++) {
+    pid = exec(prog, 1, args);
+    if (pid==-1) {
+      printf("%s: exec failed after %d runs\n", prog, i);
+      return 1;
+    }
+
+    if (join(pid, &status)!=1 || status!=0)
+      failed++;
+  }
+
+  printf("%d runs of %s, %d failed\n", count, prog, failed);
+  return 0;
+}
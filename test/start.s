@@ -67,3 +67,17 @@ name:				; \
 	SYSCALLSTUB(mmap, syscallMmap)
 	SYSCALLSTUB(connect, syscallConnect)
 	SYSCALLSTUB(accept, syscallAccept)
+	SYSCALLSTUB(munmap, syscallMunmap)
+	SYSCALLSTUB(sbrk, syscallSbrk)
+	SYSCALLSTUB(pipe, syscallPipe)
+	SYSCALLSTUB(readv, syscallReadv)
+	SYSCALLSTUB(writev, syscallWritev)
+	SYSCALLSTUB(aio_read, syscallAioRead)
+	SYSCALLSTUB(aio_write, syscallAioWrite)
+	SYSCALLSTUB(aio_wait, syscallAioWait)
+	SYSCALLSTUB(aio_poll, syscallAioPoll)
+	SYSCALLSTUB(ring_setup, syscallRingSetup)
+	SYSCALLSTUB(ring_submit, syscallRingSubmit)
+	SYSCALLSTUB(shmget, syscallShmget)
+	SYSCALLSTUB(shmat, syscallShmat)
+	SYSCALLSTUB(shmdt, syscallShmdt)
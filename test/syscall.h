@@ -25,6 +25,20 @@
 #define syscallMmap		10
 #define syscallConnect		11
 #define syscallAccept		12
+#define syscallMunmap		13
+#define syscallSbrk		14
+#define syscallPipe		15
+#define syscallReadv		16
+#define syscallWritev		17
+#define syscallAioRead		18
+#define syscallAioWrite		19
+#define syscallAioWait		20
+#define syscallAioPoll		21
+#define syscallRingSetup	22
+#define syscallRingSubmit	23
+#define syscallShmget		24
+#define syscallShmat		25
+#define syscallShmdt		26
 
 /* Don't want the assembler to see C code, but start.s includes syscall.h. */
 #ifndef START_S
@@ -71,8 +85,10 @@ void exit(int status);
 /**
  * Execute the program stored in the specified file, with the specified
  * arguments, in a new child process. The child process has a new unique
- * process ID, and starts with stdin opened as file descriptor 0, and stdout
- * opened as file descriptor 1.
+ * process ID, and starts with a copy of every file descriptor of its parent,
+ * at the same numbers, so its stdin (file descriptor 0) and stdout (file
+ * descriptor 1) are the parent's. Copies of a file share its contents but
+ * have their own file position; copies of a pipe end share the pipe.
  *
  * file is a null-terminated string that specifies the name of the file
  * containing the executable. Note that this string must include the ".coff"
@@ -215,18 +231,225 @@ int close(int fileDescriptor);
 int unlink(char *name);
 
 /**
- * Map the file referenced by fileDescriptor into memory at address. The file
- * may be as large as 0x7FFFFFFF bytes.
- * 
- * To maintain consistency, further calls to read() and write() on this file
- * descriptor will fail (returning -1) until the file descriptor is closed.
+ * Map length bytes of the file referenced by fileDescriptor, starting at
+ * offset, into the address space of the calling process. offset must be a
+ * multiple of the page size. The kernel chooses the address of the mapping;
+ * pages are read from the file the first time they are touched, and bytes
+ * past the end of the file read as zero.
+ *
+ * The mapping stays valid after fileDescriptor is closed. Dirty pages are
+ * written back to the file by munmap() or when the process exits; the file is
+ * never extended by a write-back.
+ *
+ * Mappings and shared memory attachments together may not take up more than
+ * the per-process memory limit, and must fit in the 32-bit address space.
+ *
+ * Returns the address of the mapping on success, or -1 if an error occurred.
+ */
+char *mmap(int fileDescriptor, int offset, int length);
+
+/**
+ * Remove the mapping created by mmap() at address, writing its dirty pages
+ * back to the file.
+ *
+ * Returns 0 on success, or -1 if address is not the start of a mapping.
+ */
+int munmap(char *address);
+
+/**
+ * Move the end of the heap (the program break) by increment bytes, which may
+ * be negative. The heap starts right after the program's data and can grow up
+ * to the per-process memory limit. New heap memory reads as zero; it is
+ * backed by physical memory only when first touched.
+ *
+ * Returns the previous program break, or (void *) -1 if the new break would
+ * fall outside the heap.
+ */
+void *sbrk(int increment);
+
+/**
+ * Create a pipe: a one-way channel held in kernel memory. On success, fds[0]
+ * is set to a file descriptor for the read end and fds[1] to one for the
+ * write end. read() blocks while the pipe is empty and returns 0 once it is
+ * empty and the write end has been closed; write() blocks while the pipe is
+ * full and fails (returning -1) once the read end has been closed.
+ *
+ * An end is only closed once every process holding it, including children
+ * that inherited it from exec(), has closed it. The descriptors are the
+ * lowest free ones, so closing stdin or stdout first puts an end there for
+ * the children exec()'d next.
+ *
+ * Returns 0 on success, or -1 if an error occurred.
+ */
+int pipe(int fds[2]);
+
+/* One segment of a vectored read or write. */
+struct iovec {
+    void *iov_base;	/* start of the segment */
+    int iov_len;	/* length of the segment in bytes */
+};
+
+/**
+ * Read from fileDescriptor into the iovcnt buffers described by iov, filling
+ * each buffer completely before moving to the next. At most 16 buffers may
+ * be given. The whole transfer is done in one system call.
+ *
+ * Returns the total number of bytes read, or -1 if an error occurred.
+ */
+int readv(int fileDescriptor, struct iovec *iov, int iovcnt);
+
+/**
+ * Write the iovcnt buffers described by iov to fileDescriptor, in order. At
+ * most 16 buffers may be given. The whole transfer is done in one system
+ * call, so the data is written as a single unit.
+ *
+ * Returns the total number of bytes written, or -1 if an error occurred.
+ */
+int writev(int fileDescriptor, struct iovec *iov, int iovcnt);
+
+/* ASYNCHRONOUS I/O SYSCALLS: aio_read, aio_write, aio_wait, aio_poll
+ *
+ * These start a transfer and return at once, so the program can keep
+ * computing while the kernel waits on the file system. Each call returns a
+ * handle that must later be collected with aio_wait() or aio_poll(). A
+ * process may have at most 16 transfers outstanding, each of at most 16KB.
+ * Only files opened with open() or creat() are accepted; aio_read() and
+ * aio_write() return -1 for pipes and the console, which should be read and
+ * written with read() and write().
+ */
+
+/**
+ * Start reading count bytes from fileDescriptor into buffer, beginning at
+ * byte offset in the file, or at the current file position if offset is
+ * negative. buffer must not be touched until the transfer is collected.
+ *
+ * Returns a handle for the transfer, or -1 if it could not be started.
+ */
+int aio_read(int fileDescriptor, void *buffer, int count, int offset);
+
+/**
+ * Start writing count bytes from buffer to fileDescriptor, beginning at byte
+ * offset in the file, or at the current file position if offset is negative.
+ * The data is copied before aio_write() returns, so buffer may be reused at
+ * once.
+ *
+ * Returns a handle for the transfer, or -1 if it could not be started.
+ */
+int aio_write(int fileDescriptor, void *buffer, int count, int offset);
+
+/**
+ * Wait for the transfer identified by handle to finish, and release the
+ * handle.
+ *
+ * Returns what read() or write() would have returned for the transfer, or -1
+ * if handle is invalid.
+ */
+int aio_wait(int handle);
+
+/**
+ * Check whether the transfer identified by handle has finished, without
+ * waiting. If it has, its result (as for aio_wait()) is stored in *result and
+ * the handle is released.
+ *
+ * Returns 1 if the transfer has finished, 0 if it is still in progress, or -1
+ * if handle is invalid.
+ */
+int aio_poll(int handle, int *result);
+
+/* SYSCALL BATCHING: ring_setup, ring_submit
+ *
+ * A process can queue many file system calls in a ring kept in its own
+ * memory, and have the kernel run them all with a single ring_submit(). The
+ * ring holds a header, a submission queue of ring_sqe and a completion queue
+ * of ring_cqe, each with the same power-of-two number of entries. Counters
+ * run freely; entry i of a queue lives at index (i & (entries - 1)).
+ *
+ * The program fills in an sqe at sq_tail and then increments sq_tail; the
+ * kernel consumes sqes from sq_head. For each one the kernel appends a cqe at
+ * cq_tail, holding the sqe's user_data and the value the call returned. The
+ * program reads cqes from cq_head and increments cq_head to free them.
+ *
+ * opcode is a syscall number; only creat, open, read, write, close, unlink,
+ * readv and writev may be queued. Any other opcode completes with -1.
+ */
+struct ring_header {
+    int sq_head;	/* written by the kernel */
+    int sq_tail;	/* written by the program */
+    int cq_head;	/* written by the program */
+    int cq_tail;	/* written by the kernel */
+};
+
+struct ring_sqe {
+    int opcode;
+    int args[3];
+    int user_data;
+};
+
+struct ring_cqe {
+    int user_data;
+    int result;
+};
+
+/* Layout of a ring with n entries. */
+#define RING_SIZE(n) (sizeof(struct ring_header) + \
+		      (n) * (sizeof(struct ring_sqe) + sizeof(struct ring_cqe)))
+#define RING_SQ(ring) ((struct ring_sqe *) ((struct ring_header *) (ring) + 1))
+#define RING_CQ(ring, n) ((struct ring_cqe *) (RING_SQ(ring) + (n)))
+
+/**
+ * Register the ring at address ring, with entries entries (a power of two, at
+ * most 64), replacing any ring registered before. entries == 0 unregisters
+ * the current ring.
  *
- * When the file descriptor is closed, all remaining dirty pages of the map
- * will be flushed to disk and the map will be removed.
+ * Returns 0 on success, or -1 if an error occurred.
+ */
+int ring_setup(void *ring, int entries);
+
+/**
+ * Run the requests in the submission queue of the registered ring, stopping
+ * early if the completion queue fills up.
+ *
+ * Returns the number of requests run, or -1 if no ring is registered or the
+ * ring is no longer accessible.
+ */
+int ring_submit();
+
+/* SHARED MEMORY: shmget, shmat, shmdt
+ *
+ * Processes that agree on a key can share memory without copying: each one
+ * attaches the segment with that key, and the kernel maps the same physical
+ * pages into all of them. A segment is zero-filled when it is first attached.
+ * It keeps its contents, even while nothing is attached, until every process
+ * that called shmget() for it has exited and every attachment is detached
+ * (by shmdt() or by exiting); then it is destroyed.
+ */
+
+/**
+ * Return the ID of the shared memory segment with the specified key, creating
+ * a segment of size bytes (rounded up to whole pages, at most 64 pages) if
+ * there is none.
+ *
+ * Returns the segment ID, or -1 if size is invalid or larger than the
+ * existing segment.
+ */
+int shmget(int key, int size);
+
+/**
+ * Attach the segment with the specified ID to this process, at a page-aligned
+ * address chosen by the kernel. A process may attach the same segment more
+ * than once.
+ *
+ * Returns the address of the segment, or -1 if the ID is invalid or there is
+ * not enough physical memory.
+ */
+void *shmat(int id);
+
+/**
+ * Detach the segment attached at address by shmat().
  *
- * Returns the length of the file on success, or -1 if an error occurred.
+ * Returns 0 on success, or -1 if no segment is attached there.
  */
-int mmap(int fileDescriptor, char *address);
+int shmdt(void *address);
 
 /**
  * Attempt to initiate a new connection to the specified port on the specified
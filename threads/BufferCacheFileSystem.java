@@ -0,0 +1,308 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A file system that keeps recently used file blocks in kernel memory, in
+ * front of another file system. Reads that hit the cache are served without
+ * touching the underlying file system, and so without its access delay.
+ * Writes go straight through to the underlying file system, updating any
+ * cached copy on the way, so nothing is lost if Nachos halts.
+ *
+ * <p>
+ * Blocks are evicted with the simplified 2Q policy: a block read for the
+ * first time enters a small FIFO queue, and is only promoted to the main LRU
+ * queue if it is read again after leaving the FIFO queue. A single scan over
+ * a large file therefore cannot flush the blocks that are used repeatedly.
+ *
+ * <p>
+ * To use it, set <tt>ThreadedKernel.fileSystem</tt> to
+ * <tt>nachos.threads.BufferCacheFileSystem</tt>. The cache then wraps the
+ * stub file system, with <tt>BufferCacheFileSystem.numBlocks</tt> blocks of
+ * <tt>BufferCacheFileSystem.blockSize</tt> bytes. Hits and misses are counted
+ * in the machine's <tt>Stats</tt>.
+ */
+public class BufferCacheFileSystem implements FileSystem {
+	/**
+	 * Allocate a new buffer cache in front of the stub file system, sized
+	 * from the configuration.
+	 */
+	public BufferCacheFileSystem() {
+		this(Machine.stubFileSystem(),
+		     Config.getInteger("BufferCacheFileSystem.numBlocks", 64),
+		     Config.getInteger("BufferCacheFileSystem.blockSize", 1024));
+	}
+
+	/**
+	 * Allocate a new buffer cache.
+	 *
+	 * @param	fileSystem	the file system to cache.
+	 * @param	numBlocks	the number of blocks the cache holds.
+	 * @param	blockSize	the number of bytes in a block.
+	 */
+	public BufferCacheFileSystem(FileSystem fileSystem, int numBlocks,
+				     int blockSize) {
+		Lib.assertTrue(fileSystem != null);
+		Lib.assertTrue(numBlocks > 0 && blockSize > 0);
+
+		this.fileSystem = fileSystem;
+		this.numBlocks = numBlocks;
+		this.blockSize = blockSize;
+
+		inQueueSize = Math.max(1, numBlocks / 4);
+		final int outQueueSize = Math.max(1, numBlocks / 2);
+		outQueue = new LinkedHashMap<Key, Boolean>() {
+			protected boolean removeEldestEntry(Map.Entry<Key, Boolean> eldest) {
+				return size() > outQueueSize;
+			}
+		};
+	}
+
+	public OpenFile open(String name, boolean create) {
+		OpenFile file = fileSystem.open(name, create);
+		if (file == null)
+			return null;
+
+		// creating a file truncates it
+		if (create)
+			invalidate(name);
+
+		return new CachedOpenFile(name, file);
+	}
+
+	public boolean remove(String name) {
+		invalidate(name);
+		return fileSystem.remove(name);
+	}
+
+	/**
+	 * Drop every cached block of a file. Rather than searching for them, the
+	 * file's generation is bumped so that its old blocks can no longer be
+	 * found, and they age out of the queues.
+	 */
+	private void invalidate(String name) {
+		lock.acquire();
+		generations.put(name, generation(name) + 1);
+		lock.release();
+	}
+
+	private int generation(String name) {
+		Integer generation = generations.get(name);
+		return generation == null ? 0 : generation;
+	}
+
+	/**
+	 * Return the specified block, reading it into the cache if it is not
+	 * there already.
+	 *
+	 * @return	the block, or <tt>null</tt> if it could not be read.
+	 */
+	private Block getBlock(String name, OpenFile file, int blockNumber) {
+		lock.acquire();
+		Key key = new Key(name, generation(name), blockNumber);
+		Block block = mainQueue.get(key);
+		if (block == null)
+			block = inQueue.get(key);
+		lock.release();
+
+		if (block != null) {
+			Machine.stats().numBufferCacheHits++;
+			return block;
+		}
+
+		Machine.stats().numBufferCacheMisses++;
+		block = new Block(blockSize);
+		block.valid = file.read(blockNumber * blockSize, block.data, 0,
+					blockSize);
+		if (block.valid < 0)
+			return null;
+
+		lock.acquire();
+		// the file may have been truncated while we were reading
+		if (generation(name) == key.generation
+		    && !mainQueue.containsKey(key) && !inQueue.containsKey(key))
+			insert(key, block);
+		lock.release();
+
+		return block;
+	}
+
+	private void insert(Key key, Block block) {
+		if (outQueue.remove(key) != null)
+			mainQueue.put(key, block);
+		else
+			inQueue.put(key, block);
+
+		while (inQueue.size() + mainQueue.size() > numBlocks) {
+			if (inQueue.size() > inQueueSize || mainQueue.isEmpty()) {
+				Key victim = inQueue.keySet().iterator().next();
+				inQueue.remove(victim);
+				outQueue.put(victim, Boolean.TRUE);
+			}
+			else {
+				mainQueue.remove(mainQueue.keySet().iterator().next());
+			}
+		}
+	}
+
+	/**
+	 * Bring the cached copies of the blocks covered by a write up to date.
+	 * Blocks that cannot be patched in place are dropped.
+	 */
+	private void update(String name, int oldLength, int pos, byte[] buf,
+			    int offset, int length) {
+		lock.acquire();
+		int generation = generation(name);
+
+		// a write past the end of the file changes the block that held
+		// the old end of file, by filling the gap with zeros
+		if (pos > oldLength)
+			drop(new Key(name, generation, oldLength / blockSize));
+
+		for (int done = 0; done < length; ) {
+			int blockNumber = (pos + done) / blockSize;
+			int blockOffset = (pos + done) % blockSize;
+			int amount = Math.min(length - done, blockSize - blockOffset);
+
+			Key key = new Key(name, generation, blockNumber);
+			Block block = mainQueue.get(key);
+			if (block == null)
+				block = inQueue.get(key);
+
+			if (block != null) {
+				if (blockOffset <= block.valid) {
+					System.arraycopy(buf, offset + done, block.data,
+							 blockOffset, amount);
+					block.valid = Math.max(block.valid,
+							       blockOffset + amount);
+				}
+				else {
+					drop(key);
+				}
+			}
+
+			done += amount;
+		}
+		lock.release();
+	}
+
+	private void drop(Key key) {
+		if (mainQueue.remove(key) == null)
+			inQueue.remove(key);
+	}
+
+	private class CachedOpenFile extends OpenFileWithPosition {
+		CachedOpenFile(String name, OpenFile file) {
+			super(BufferCacheFileSystem.this, name);
+			this.file = file;
+		}
+
+		public int read(int pos, byte[] buf, int offset, int length) {
+			Lib.assertTrue(offset >= 0 && length >= 0
+				       && offset + length <= buf.length);
+			if (file == null || pos < 0)
+				return -1;
+
+			int amount = 0;
+			while (amount < length) {
+				int blockNumber = (pos + amount) / blockSize;
+				int blockOffset = (pos + amount) % blockSize;
+
+				Block block = getBlock(getName(), file, blockNumber);
+				if (block == null)
+					return amount > 0 ? amount : -1;
+
+				int count = Math.min(length - amount,
+						     block.valid - blockOffset);
+				if (count <= 0)
+					break;
+
+				System.arraycopy(block.data, blockOffset, buf,
+						 offset + amount, count);
+				amount += count;
+
+				// a short block is the end of the file
+				if (block.valid < blockSize)
+					break;
+			}
+
+			return amount;
+		}
+
+		public int write(int pos, byte[] buf, int offset, int length) {
+			if (file == null || pos < 0)
+				return -1;
+
+			int oldLength = file.length();
+			int amount = file.write(pos, buf, offset, length);
+			if (amount > 0)
+				update(getName(), oldLength, pos, buf, offset, amount);
+			return amount;
+		}
+
+		public int length() {
+			return file == null ? -1 : file.length();
+		}
+
+		public void close() {
+			if (file != null) {
+				file.close();
+				file = null;
+			}
+		}
+
+		private OpenFile file;
+	}
+
+	private static class Key {
+		Key(String name, int generation, int blockNumber) {
+			this.name = name;
+			this.generation = generation;
+			this.blockNumber = blockNumber;
+		}
+
+		public boolean equals(Object o) {
+			if (!(o instanceof Key))
+				return false;
+
+			Key key = (Key) o;
+			return blockNumber == key.blockNumber
+				&& generation == key.generation
+				&& name.equals(key.name);
+		}
+
+		public int hashCode() {
+			return (name.hashCode() * 31 + generation) * 31 + blockNumber;
+		}
+
+		String name;
+		int generation, blockNumber;
+	}
+
+	private static class Block {
+		Block(int blockSize) {
+			data = new byte[blockSize];
+		}
+
+		byte[] data;
+		int valid;
+	}
+
+	private FileSystem fileSystem;
+	private int numBlocks, blockSize, inQueueSize;
+
+	/** Blocks read once, in the order they were read. */
+	private LinkedHashMap<Key, Block> inQueue = new LinkedHashMap<Key, Block>();
+	/** Blocks read again after leaving <tt>inQueue</tt>, in LRU order. */
+	private LinkedHashMap<Key, Block> mainQueue =
+		new LinkedHashMap<Key, Block>(16, 0.75f, true);
+	/** The keys of blocks recently evicted from <tt>inQueue</tt>. */
+	private LinkedHashMap<Key, Boolean> outQueue;
+
+	private HashMap<String, Integer> generations = new HashMap<String, Integer>();
+	private Lock lock = new Lock();
+}
@@ -0,0 +1,345 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * The queue of requests waiting for a disk. Whenever the disk becomes idle,
+ * the scheduler picks the next request according to its policy:
+ *
+ * <ul>
+ * <li><tt>fifo</tt>: in order of arrival.
+ * <li><tt>sstf</tt>: the request closest to the head.
+ * <li><tt>scan</tt>: the closest request in the direction the head is moving,
+ * reversing when there are no more requests ahead (the LOOK variant of the
+ * elevator algorithm).
+ * <li><tt>clook</tt>: the closest request at or above the head, wrapping
+ * around to the lowest sector when there are none, so that every part of the
+ * disk waits about as long.
+ * <li><tt>deadline</tt>: like <tt>clook</tt>, but a request that has waited
+ * past its deadline is served first. Reads expire after
+ * <tt>SynchDisk.readDeadline</tt> ticks and writes after
+ * <tt>SynchDisk.writeDeadline</tt> ticks, since a thread waiting for a read
+ * usually cannot make progress without it.
+ * </ul>
+ *
+ * <p>
+ * The chosen request is merged with any other pending requests in the same
+ * direction for the sectors just before or after it, up to
+ * <tt>SynchDisk.maxMergeSectors</tt> sectors, and with pending reads of the
+ * same sectors. The whole run is then transferred as a single disk request.
+ *
+ * <p>
+ * The scheduler keeps statistics on the seek distance of each disk request
+ * and on how long requests wait, to compare policies on the same workload.
+ * Its methods must be called with interrupts disabled.
+ */
+public class DiskScheduler {
+	/**
+	 * Allocate a new disk scheduler.
+	 *
+	 * @param disk   the disk whose requests are scheduled.
+	 * @param policy the name of the scheduling policy.
+	 */
+	public DiskScheduler(Disk disk, String policy) {
+		Lib.assertTrue(policy.equals("fifo") || policy.equals("sstf")
+				|| policy.equals("scan") || policy.equals("clook")
+				|| policy.equals("deadline"), "unknown disk policy " + policy);
+
+		this.disk = disk;
+		this.policy = policy;
+
+		maxMerge = Config.getInteger("SynchDisk.maxMergeSectors",
+				disk.getSectorsPerTrack());
+		readDeadline = Config.getInteger("SynchDisk.readDeadline", 5000);
+		writeDeadline = Config.getInteger("SynchDisk.writeDeadline", 25000);
+		Lib.assertTrue(maxMerge > 0);
+	}
+
+	/**
+	 * Add a request to the queue.
+	 *
+	 * @param request the request to add.
+	 */
+	public void add(Request request) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		request.arrival = Machine.timer().getTime();
+		request.deadline = request.arrival
+				+ (request.write ? writeDeadline : readDeadline);
+		pending.add(request);
+	}
+
+	/**
+	 * Remove the next run of requests to serve from the queue.
+	 *
+	 * @return the next batch, or <tt>null</tt> if no requests are waiting.
+	 */
+	public Batch next() {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		if (pending.isEmpty())
+			return null;
+
+		Request first = choose();
+		Batch batch = merge(first);
+
+		long now = Machine.timer().getTime();
+		numBatches++;
+		totalSeek += Math.abs(disk.trackOf(batch.sector) - disk.getHeadTrack());
+		for (Request request : batch.requests) {
+			numRequests++;
+			totalWait += now - request.arrival;
+			maxWait = Math.max(maxWait, now - request.arrival);
+		}
+
+		if (batch.sector > headSector)
+			ascending = true;
+		else if (batch.sector < headSector)
+			ascending = false;
+		headSector = batch.sector + batch.count - 1;
+
+		return batch;
+	}
+
+	/**
+	 * Note that the disk has finished a batch.
+	 *
+	 * @param batch the completed batch.
+	 */
+	public void complete(Batch batch) {
+		long now = Machine.timer().getTime();
+		for (Request request : batch.requests)
+			totalResponse += now - request.arrival;
+	}
+
+	private Request choose() {
+		if (policy.equals("fifo"))
+			return pending.getFirst();
+
+		if (policy.equals("sstf")) {
+			Request best = null;
+			for (Request request : pending) {
+				if (best == null || Math.abs(request.sector - headSector)
+						< Math.abs(best.sector - headSector))
+					best = request;
+			}
+			return best;
+		}
+
+		if (policy.equals("scan")) {
+			Request ahead = closest(ascending);
+			return ahead != null ? ahead : closest(!ascending);
+		}
+
+		if (policy.equals("deadline")) {
+			Request oldest = null;
+			for (Request request : pending) {
+				if (oldest == null || request.deadline < oldest.deadline)
+					oldest = request;
+			}
+			if (oldest.deadline <= Machine.timer().getTime()) {
+				numExpired++;
+				return oldest;
+			}
+		}
+
+		// C-LOOK, also used by the deadline policy for unexpired requests
+		Request ahead = closest(true);
+		if (ahead != null)
+			return ahead;
+
+		Request lowest = null;
+		for (Request request : pending) {
+			if (lowest == null || request.sector < lowest.sector)
+				lowest = request;
+		}
+		return lowest;
+	}
+
+	/**
+	 * Return the closest pending request at or beyond the head in the
+	 * specified direction, or <tt>null</tt> if there is none.
+	 */
+	private Request closest(boolean up) {
+		Request best = null;
+		for (Request request : pending) {
+			int distance = up ? request.sector - headSector
+					: headSector - request.sector;
+			if (distance >= 0 && (best == null || distance
+					< Math.abs(best.sector - headSector)))
+				best = request;
+		}
+		return best;
+	}
+
+	private Batch merge(Request first) {
+		pending.remove(first);
+
+		Batch batch = new Batch(first);
+		int low = first.sector, high = first.sector;
+
+		boolean merged;
+		do {
+			merged = false;
+			for (Iterator<Request> i = pending.iterator(); i.hasNext(); ) {
+				Request request = i.next();
+				if (request.write != first.write)
+					continue;
+
+				if (!request.write && request.sector >= low
+						&& request.sector <= high) {
+					// another read of a sector already in the run
+				} else if (request.sector == high + 1
+						&& high - low + 1 < maxMerge) {
+					high++;
+				} else if (request.sector == low - 1
+						&& high - low + 1 < maxMerge) {
+					low--;
+				} else {
+					continue;
+				}
+
+				i.remove();
+				batch.requests.add(request);
+				merged = true;
+			}
+		} while (merged);
+
+		batch.sector = low;
+		batch.count = high - low + 1;
+		numMerged += batch.requests.size() - 1;
+
+		if (batch.requests.size() > 1) {
+			int sectorSize = disk.getSectorSize();
+			batch.data = new byte[batch.count * sectorSize];
+			batch.offset = 0;
+
+			if (batch.write) {
+				for (Request request : batch.requests)
+					System.arraycopy(request.data, request.offset, batch.data,
+							(request.sector - low) * sectorSize, sectorSize);
+			}
+		}
+
+		return batch;
+	}
+
+	/**
+	 * Return a summary of the statistics kept by this scheduler.
+	 *
+	 * @return a line describing the requests served so far.
+	 */
+	public String report() {
+		return "Disk scheduler (" + policy + "): requests " + numRequests
+				+ ", disk requests " + numBatches
+				+ ", merged " + numMerged
+				+ ", expired " + numExpired
+				+ "\n\tavg seek " + average(totalSeek, numBatches) + " tracks"
+				+ ", avg wait " + average(totalWait, numRequests) + " ticks"
+				+ ", max wait " + maxWait + " ticks"
+				+ ", avg response " + average(totalResponse, numRequests)
+				+ " ticks";
+	}
+
+	private static String average(long total, long count) {
+		if (count == 0)
+			return "0";
+		return String.format("%.1f", (double) total / count);
+	}
+
+	/**
+	 * A request to read or write one sector. The thread making it waits on
+	 * <tt>done</tt>.
+	 */
+	public static class Request {
+		/**
+		 * Allocate a new request.
+		 *
+		 * @param sector the sector to access.
+		 * @param data   the buffer to transfer to or from.
+		 * @param offset the offset of the sector in the buffer.
+		 * @param write  <tt>true</tt> to write the sector.
+		 */
+		public Request(int sector, byte[] data, int offset, boolean write) {
+			this.sector = sector;
+			this.data = data;
+			this.offset = offset;
+			this.write = write;
+		}
+
+		int sector;
+		byte[] data;
+		int offset;
+		boolean write;
+		long arrival, deadline;
+
+		/** Signalled when the request has been served. */
+		public Semaphore done = new Semaphore(0);
+	}
+
+	/**
+	 * A run of consecutive sectors transferred with a single disk request,
+	 * on behalf of one or more requests. If there is only one, the data is
+	 * transferred straight to or from its buffer.
+	 */
+	public static class Batch {
+		Batch(Request first) {
+			sector = first.sector;
+			count = 1;
+			write = first.write;
+			data = first.data;
+			offset = first.offset;
+			requests.add(first);
+		}
+
+		/**
+		 * Start the transfer of this batch.
+		 *
+		 * @param disk the disk to transfer to or from.
+		 */
+		public void start(Disk disk) {
+			if (write)
+				disk.writeSectors(sector, count, data, offset);
+			else
+				disk.readSectors(sector, count, data, offset);
+		}
+
+		/**
+		 * Finish this batch, copying read data out to every request and
+		 * waking their threads.
+		 *
+		 * @param disk the disk the batch was transferred to or from.
+		 */
+		public void finish(Disk disk) {
+			int sectorSize = disk.getSectorSize();
+			for (Request request : requests) {
+				if (!write && request.data != data)
+					System.arraycopy(data,
+							offset + (request.sector - sector) * sectorSize,
+							request.data, request.offset, sectorSize);
+				request.done.V();
+			}
+		}
+
+		int sector, count;
+		boolean write;
+		byte[] data;
+		int offset;
+		LinkedList<Request> requests = new LinkedList<Request>();
+	}
+
+	private Disk disk;
+	private String policy;
+	private int maxMerge;
+	private int readDeadline, writeDeadline;
+
+	private LinkedList<Request> pending = new LinkedList<Request>();
+	private int headSector = 0;
+	private boolean ascending = true;
+
+	private long numRequests = 0, numBatches = 0, numMerged = 0, numExpired = 0;
+	private long totalSeek = 0, totalWait = 0, totalResponse = 0, maxWait = 0;
+}
@@ -0,0 +1,147 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * Provides a synchronous interface to the machine's disk. Each request blocks
+ * the calling thread until the disk has completed it, and other threads keep
+ * running in the meantime. Requests that arrive while the disk is busy are
+ * queued, and served in the order chosen by a <tt>DiskScheduler</tt> whose
+ * policy is set by the <tt>SynchDisk.policy</tt> key.
+ */
+public class SynchDisk {
+	/**
+	 * Allocate a new <tt>SynchDisk</tt>.
+	 *
+	 * @param disk the underlying disk to use.
+	 */
+	public SynchDisk(Disk disk) {
+		this.disk = disk;
+
+		scheduler = new DiskScheduler(disk,
+				Config.getString("SynchDisk.policy", "clook"));
+
+		disk.setInterruptHandler(new Runnable() {
+			public void run() {
+				requestDone();
+			}
+		});
+	}
+
+	/**
+	 * Read a sector, blocking until the data is in the buffer.
+	 *
+	 * @param sector the sector to read.
+	 * @param data   the buffer to read into.
+	 * @param offset the first byte of the buffer to write.
+	 */
+	public void readSector(int sector, byte[] data, int offset) {
+		request(new DiskScheduler.Request(sector, data, offset, false));
+	}
+
+	/**
+	 * Write a sector, blocking until the data has reached the disk.
+	 *
+	 * @param sector the sector to write.
+	 * @param data   the buffer to write from.
+	 * @param offset the first byte of the buffer to read.
+	 */
+	public void writeSector(int sector, byte[] data, int offset) {
+		request(new DiskScheduler.Request(sector, data, offset, true));
+	}
+
+	/**
+	 * Read a run of consecutive sectors, blocking until all the data is in
+	 * the buffer. The sectors are queued together, so the scheduler can
+	 * transfer them with as few disk requests as possible.
+	 *
+	 * @param sector the first sector to read.
+	 * @param count  the number of sectors to read.
+	 * @param data   the buffer to read into.
+	 * @param offset the first byte of the buffer to write.
+	 */
+	public void readSectors(int sector, int count, byte[] data, int offset) {
+		request(sector, count, data, offset, false);
+	}
+
+	/**
+	 * Write a run of consecutive sectors, blocking until all the data has
+	 * reached the disk.
+	 *
+	 * @param sector the first sector to write.
+	 * @param count  the number of sectors to write.
+	 * @param data   the buffer to write from.
+	 * @param offset the first byte of the buffer to read.
+	 */
+	public void writeSectors(int sector, int count, byte[] data, int offset) {
+		request(sector, count, data, offset, true);
+	}
+
+	private void request(DiskScheduler.Request request) {
+		boolean intStatus = Machine.interrupt().disable();
+
+		scheduler.add(request);
+		if (current == null)
+			startNext();
+
+		request.done.P();
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	private void request(int sector, int count, byte[] data, int offset,
+			boolean write) {
+		DiskScheduler.Request[] requests = new DiskScheduler.Request[count];
+		for (int i = 0; i < count; i++)
+			requests[i] = new DiskScheduler.Request(sector + i, data,
+					offset + i * disk.getSectorSize(), write);
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		for (int i = 0; i < count; i++)
+			scheduler.add(requests[i]);
+		if (current == null)
+			startNext();
+
+		for (int i = 0; i < count; i++)
+			requests[i].done.P();
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	private void startNext() {
+		current = scheduler.next();
+		if (current != null)
+			current.start(disk);
+	}
+
+	private void requestDone() {
+		DiskScheduler.Batch batch = current;
+
+		scheduler.complete(batch);
+		startNext();
+		batch.finish(disk);
+	}
+
+	/**
+	 * Return the underlying disk.
+	 *
+	 * @return the disk this object serves requests to.
+	 */
+	public Disk getDisk() {
+		return disk;
+	}
+
+	/**
+	 * Return the scheduler that orders requests to the disk.
+	 *
+	 * @return the disk scheduler.
+	 */
+	public DiskScheduler getScheduler() {
+		return scheduler;
+	}
+
+	private Disk disk;
+	private DiskScheduler scheduler;
+	private DiskScheduler.Batch current = null;
+}
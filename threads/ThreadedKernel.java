@@ -17,13 +17,18 @@ public class ThreadedKernel extends Kernel {
 
 	/**
 	 * Initialize this kernel. Creates a scheduler, the first thread, and an
-	 * alarm, and enables interrupts. Creates a file system if necessary.
+	 * alarm, and enables interrupts. Creates a file system if necessary, and a
+	 * synchronous interface to the disk if the machine has one.
 	 */
 	public void initialize(String[] args) {
 		// set scheduler
 		String schedulerName = Config.getString("ThreadedKernel.scheduler");
 		scheduler = (Scheduler) Lib.constructObject(schedulerName);
 
+		// set disk, before any file system that might use it
+		if (Machine.disk() != null)
+			disk = new SynchDisk(Machine.disk());
+
 		// set fileSystem
 		String fileSystemName = Config.getString("ThreadedKernel.fileSystem");
 		if (fileSystemName != null)
@@ -87,6 +92,12 @@ public class ThreadedKernel extends Kernel {
 	 * Terminate this kernel. Never returns.
 	 */
 	public void terminate() {
+		if (fileSystem instanceof SyncableFileSystem)
+			((SyncableFileSystem) fileSystem).sync();
+
+		if (disk != null)
+			System.out.println(disk.getScheduler().report());
+
 		Machine.halt();
 	}
 
@@ -96,6 +107,8 @@ public class ThreadedKernel extends Kernel {
 	public static Alarm alarm = null;
 	/** Globally accessible reference to the file system. */
 	public static FileSystem fileSystem = null;
+	/** Globally accessible reference to the disk, if there is one. */
+	public static SynchDisk disk = null;
 
 	// dummy variables to make javac smarter
 	private static RoundRobinScheduler dummy1 = null;
@@ -0,0 +1,268 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.Lock;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * An <tt>OpenFile</tt> that adds read-ahead and write-behind to another open
+ * file.
+ * <p>
+ * <p>
+ * Reads are watched for sequential access. While each read starts where the
+ * previous one ended, the read-ahead window doubles, up to a limit, and the
+ * blocks in the window past the current read are fetched on
+ * <tt>UserKernel.ioWorkers</tt>, so that later reads find them in memory. A
+ * read anywhere else closes the window. A read never waits for a block that
+ * is still being fetched; it reads the file directly instead.
+ * <p>
+ * <p>
+ * Small contiguous writes are gathered in a dirty buffer and written to the
+ * underlying file as one request, when the buffer fills, when a write is not
+ * contiguous with it, before any read, and on <tt>close()</tt>. An error
+ * writing a deferred buffer cannot be reported to the writer.
+ */
+public class BufferedOpenFile extends OpenFileWithPosition {
+    /**
+     * Allocate a new buffered file.
+     *
+     * @param file          the file to buffer.
+     * @param maxWindow     the most blocks to read ahead.
+     * @param dirtyCapacity the most bytes to hold back from writes.
+     */
+    public BufferedOpenFile(OpenFile file, int maxWindow, int dirtyCapacity) {
+        super(file.getFileSystem(), file.getName());
+
+        Lib.assertTrue(maxWindow >= 0 && dirtyCapacity >= 0);
+
+        this.file = file;
+        this.maxWindow = maxWindow;
+        this.dirty = new byte[dirtyCapacity];
+    }
+
+    public int read(int pos, byte[] buf, int offset, int length) {
+        Lib.assertTrue(offset >= 0 && length >= 0 && offset + length <= buf.length);
+        if (pos < 0)
+            return -1;
+
+        lock.acquire();
+        flush();
+
+        if (pos == nextSequential) {
+            window = Math.min(Math.max(1, window * 2), maxWindow);
+        } else {
+            window = 0;
+            blocks.clear();
+        }
+        nextSequential = pos + length;
+
+        // take what we can from blocks that were read ahead
+        int amount = 0;
+        boolean endOfFile = false;
+        while (amount < length) {
+            // never wait for a block still being read: the reader may itself
+            // be one of the workers that would have to read it
+            Block block = blocks.get((pos + amount) / blockSize);
+            if (block == null || !block.ready || block.valid < 0)
+                break;
+
+            int blockOffset = (pos + amount) % blockSize;
+            int count = Math.min(length - amount, block.valid - blockOffset);
+            if (count > 0) {
+                System.arraycopy(block.data, blockOffset, buf, offset + amount, count);
+                amount += count;
+                readAheadHits++;
+            }
+            if (block.valid < blockSize) {
+                endOfFile = true;
+                break;
+            }
+        }
+        lock.release();
+
+        // and the rest from the file itself
+        if (amount < length && !endOfFile) {
+            int count = file.read(pos + amount, buf, offset + amount, length - amount);
+            if (count < 0 && amount == 0)
+                return -1;
+            amount += Math.max(count, 0);
+        }
+
+        lock.acquire();
+        readAhead((pos + length + blockSize - 1) / blockSize);
+        lock.release();
+
+        return amount;
+    }
+
+    /**
+     * Drop blocks before <i>firstBlock</i>, and start reading the blocks of
+     * the window that are not already held.
+     */
+    private void readAhead(int firstBlock) {
+        for (Iterator<Integer> i = blocks.keySet().iterator(); i.hasNext(); )
+            if (i.next() < firstBlock)
+                i.remove();
+
+        for (int b = firstBlock; b < firstBlock + window; b++) {
+            if (blocks.containsKey(b))
+                continue;
+
+            final int blockNumber = b;
+            final Block block = new Block();
+            blocks.put(blockNumber, block);
+            readAheads++;
+
+            UserKernel.ioWorkers.submit(new Runnable() {
+                public void run() {
+                    int valid = file.read(blockNumber * blockSize, block.data, 0, blockSize);
+
+                    lock.acquire();
+                    block.valid = valid;
+                    block.ready = true;
+                    lock.release();
+                }
+            });
+        }
+    }
+
+    public int write(int pos, byte[] buf, int offset, int length) {
+        Lib.assertTrue(offset >= 0 && length >= 0 && offset + length <= buf.length);
+        if (pos < 0)
+            return -1;
+
+        lock.acquire();
+        if (dirtyLength > 0 && (pos != dirtyStart + dirtyLength ||
+                dirtyLength + length > dirty.length))
+            flush();
+
+        int amount;
+        if (length > dirty.length) {
+            dropBlocks(pos, length);
+            amount = file.write(pos, buf, offset, length);
+        } else {
+            if (dirtyLength == 0)
+                dirtyStart = pos;
+            System.arraycopy(buf, offset, dirty, dirtyLength, length);
+            dirtyLength += length;
+            amount = length;
+        }
+        lock.release();
+
+        return amount;
+    }
+
+    /**
+     * Write the dirty buffer to the underlying file. Blocks read ahead over
+     * the written range are dropped, since they may have been read before the
+     * write.
+     */
+    private void flush() {
+        if (dirtyLength == 0)
+            return;
+
+        dropBlocks(dirtyStart, dirtyLength);
+        if (file.write(dirtyStart, dirty, 0, dirtyLength) != dirtyLength)
+            Lib.debug(dbgBuffer, "\tlost deferred write to " + getName());
+        dirtyLength = 0;
+        flushes++;
+    }
+
+    private void dropBlocks(int pos, int length) {
+        for (int b = pos / blockSize; b <= (pos + length - 1) / blockSize; b++)
+            blocks.remove(b);
+    }
+
+    /**
+     * Throw away the dirty buffer and every block read ahead, because the
+     * underlying file has been truncated behind this file's back.
+     */
+    public void discard() {
+        lock.acquire();
+        dirtyLength = 0;
+        blocks.clear();
+        nextSequential = -1;
+        lock.release();
+    }
+
+    public int length() {
+        lock.acquire();
+        int length = file.length();
+        if (dirtyLength > 0)
+            length = Math.max(length, dirtyStart + dirtyLength);
+        lock.release();
+        return length;
+    }
+
+    public void close() {
+        lock.acquire();
+        flush();
+        blocks.clear();
+        lock.release();
+
+        Lib.debug(dbgBuffer, "\t" + getName() + ": read ahead " + readAheads
+                + ", hits " + readAheadHits + ", flushes " + flushes);
+        file.close();
+    }
+
+    /**
+     * Return the number of blocks currently read ahead of sequential reads.
+     *
+     * @return the size of the read-ahead window.
+     */
+    public int getReadAheadWindow() {
+        return window;
+    }
+
+    /**
+     * Return the number of blocks that have been read ahead.
+     *
+     * @return the number of blocks read ahead.
+     */
+    public int getReadAheads() {
+        return readAheads;
+    }
+
+    /**
+     * Return the number of blocks that reads have been served from.
+     *
+     * @return the number of read-ahead hits.
+     */
+    public int getReadAheadHits() {
+        return readAheadHits;
+    }
+
+    /**
+     * Return the number of times the dirty buffer has been written out.
+     *
+     * @return the number of flushes.
+     */
+    public int getFlushes() {
+        return flushes;
+    }
+
+    private static class Block {
+        byte[] data = new byte[blockSize];
+        int valid = -1;
+        boolean ready = false;
+    }
+
+    private OpenFile file;
+
+    private int maxWindow, window = 0;
+    private int nextSequential = 0;
+    private Map<Integer, Block> blocks = new HashMap<Integer, Block>();
+
+    private byte[] dirty;
+    private int dirtyStart = 0, dirtyLength = 0;
+
+    private int readAheads = 0, readAheadHits = 0, flushes = 0;
+
+    private Lock lock = new Lock();
+
+    private static final int blockSize = Processor.pageSize;
+    private static final char dbgBuffer = 'b';
+}
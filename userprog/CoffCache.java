@@ -0,0 +1,314 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.Lock;
+import nachos.threads.ThreadedKernel;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded LRU cache of parsed COFF executables. The first <tt>exec</tt> of
+ * a program reads the whole file with a single file system access and parses
+ * its headers; later <tt>exec</tt>s of the same program are served from
+ * memory without touching the file system.
+ * <p>
+ * <p>
+ * Every file name has a modification stamp that the kernel bumps whenever it
+ * sees the file being created, written or unlinked. Cached images are keyed
+ * by name and stamp, so a modified executable is always read again.
+ */
+public class CoffCache {
+    /**
+     * Allocate a new COFF cache.
+     *
+     * @param capacity the maximum number of executables to keep cached. A
+     *                 capacity of zero disables caching.
+     */
+    public CoffCache(final int capacity) {
+        this.capacity = capacity;
+
+        images = new LinkedHashMap<String, Image>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<String, Image> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Load the executable with the specified name, from this cache if
+     * possible.
+     *
+     * @param name the name of the file containing the executable.
+     * @return a new loader for the executable, or <tt>null</tt> if the file
+     * could not be opened or is not a valid executable.
+     */
+    public CachedCoff load(String name) {
+        mutex.acquire();
+        Image image = images.get(name);
+        int stamp = stamp(name);
+        mutex.release();
+
+        if (image != null) {
+            Lib.debug(dbgCoff, "\tcoff cache hit for " + name);
+            return new CachedCoff(image);
+        }
+
+        OpenFile executable = ThreadedKernel.fileSystem.open(name, false);
+        if (executable == null) {
+            Lib.debug(dbgCoff, "\topen failed");
+            return null;
+        }
+        byte[] bytes = Lib.loadFile(executable);
+        executable.close();
+        if (bytes == null)
+            return null;
+
+        image = parse(name, stamp, bytes);
+        if (image == null)
+            return null;
+
+        mutex.acquire();
+        // do not cache the image if the file changed while we were reading it
+        if (capacity > 0 && stamp(name) == stamp)
+            images.put(name, image);
+        mutex.release();
+
+        return new CachedCoff(image);
+    }
+
+    /**
+     * Note that the specified file has been modified, dropping any cached
+     * image of it.
+     *
+     * @param name the name of the modified file.
+     */
+    public void invalidate(String name) {
+        mutex.acquire();
+        Integer stamp = stamps.get(name);
+        if (stamp != null) {
+            stamps.put(name, stamp + 1);
+            images.remove(name);
+        }
+        mutex.release();
+    }
+
+    private int stamp(String name) {
+        Integer stamp = stamps.get(name);
+        if (stamp == null) {
+            stamp = 0;
+            stamps.put(name, stamp);
+        }
+        return stamp;
+    }
+
+    /**
+     * Parse a COFF executable held in memory. Performs the same checks as
+     * the <tt>Coff</tt> and <tt>CoffSection</tt> constructors.
+     */
+    private static Image parse(String name, int stamp, byte[] bytes) {
+        if (bytes.length < headerLength + aoutHeaderLength) {
+            Lib.debug(dbgCoff, "\tfile is not executable");
+            return null;
+        }
+
+        int magic = Lib.bytesToUnsignedShort(bytes, 0);
+        int numSections = Lib.bytesToUnsignedShort(bytes, 2);
+        int optionalHeaderLength = Lib.bytesToUnsignedShort(bytes, 16);
+        int flags = Lib.bytesToUnsignedShort(bytes, 18);
+        int entryPoint = Lib.bytesToInt(bytes, headerLength + 16);
+
+        if (magic != 0x0162) {
+            Lib.debug(dbgCoff, "\tincorrect magic number");
+            return null;
+        }
+        if (numSections < 2 || numSections > 10) {
+            Lib.debug(dbgCoff, "\tbad section count");
+            return null;
+        }
+        if ((flags & 0x0003) != 0x0003) {
+            Lib.debug(dbgCoff, "\tbad header flags");
+            return null;
+        }
+
+        Image image = new Image(name + "#" + stamp + "#" + bytes.length,
+                entryPoint, numSections);
+
+        int offset = headerLength + optionalHeaderLength;
+        for (int s = 0; s < numSections; s++) {
+            image.sections[s] = parseSection(image, bytes,
+                    offset + s * CoffSection.headerLength);
+            if (image.sections[s] == null) {
+                Lib.debug(dbgCoff, "\terror loading section " + s);
+                return null;
+            }
+        }
+
+        return image;
+    }
+
+    private static CachedSection parseSection(Image image, byte[] bytes,
+                                              int headerOffset) {
+        if (headerOffset + CoffSection.headerLength > bytes.length) {
+            Lib.debug(dbgCoff, "\tsection header truncated");
+            return null;
+        }
+
+        String name = Lib.bytesToString(bytes, headerOffset, 8);
+        int vaddr = Lib.bytesToInt(bytes, headerOffset + 12);
+        int size = Lib.bytesToInt(bytes, headerOffset + 16);
+        int contentOffset = Lib.bytesToInt(bytes, headerOffset + 20);
+        int numRelocations = Lib.bytesToUnsignedShort(bytes, headerOffset + 32);
+        int flags = Lib.bytesToInt(bytes, headerOffset + 36);
+
+        if (numRelocations != 0) {
+            Lib.debug(dbgCoff, "\tsection needs relocation");
+            return null;
+        }
+
+        boolean executable, readOnly, initialized;
+        switch (flags & 0x0FFF) {
+            case 0x0020:
+                executable = true;
+                readOnly = true;
+                initialized = true;
+                break;
+            case 0x0040:
+                executable = false;
+                readOnly = false;
+                initialized = true;
+                break;
+            case 0x0080:
+                executable = false;
+                readOnly = false;
+                initialized = false;
+                break;
+            case 0x0100:
+                executable = false;
+                readOnly = true;
+                initialized = true;
+                break;
+            default:
+                Lib.debug(dbgCoff, "\tinvalid section flags: " + flags);
+                return null;
+        }
+
+        if (vaddr % Processor.pageSize != 0 || size < 0 ||
+                initialized && (contentOffset < 0 ||
+                        contentOffset + size > bytes.length)) {
+            Lib.debug(dbgCoff, "\tinvalid section addresses: " +
+                    "vaddr=" + vaddr + " size=" + size +
+                    " contentOffset=" + contentOffset);
+            return null;
+        }
+
+        byte[] contents = null;
+        if (initialized)
+            contents = Arrays.copyOfRange(bytes, contentOffset,
+                    contentOffset + size);
+
+        return new CachedSection(image.template, name, executable, readOnly,
+                initialized, Lib.divRoundUp(size, Processor.pageSize),
+                vaddr / Processor.pageSize, contents);
+    }
+
+    /**
+     * A parsed executable, shared by every loader created from it.
+     */
+    private static class Image {
+        Image(String key, int entryPoint, int numSections) {
+            this.key = key;
+            this.template = new CachedCoff(this);
+            this.entryPoint = entryPoint;
+            this.sections = new CachedSection[numSections];
+        }
+
+        String key;
+        CachedCoff template;
+        int entryPoint;
+        CachedSection[] sections;
+    }
+
+    /**
+     * A COFF loader backed by a cached image. Each process gets its own
+     * loader, so closing it does not affect the cached image.
+     */
+    public static class CachedCoff extends Coff {
+        private CachedCoff(Image image) {
+            super();
+
+            this.image = image;
+            this.entryPoint = image.entryPoint;
+            this.sections = image.sections;
+        }
+
+        /**
+         * Return a key that identifies this executable image: it differs
+         * between any two versions of the same file.
+         *
+         * @return the key of this image.
+         */
+        public String getImageKey() {
+            return image.key;
+        }
+
+        public int getEntryPoint() {
+            Lib.assertTrue(sections != null);
+
+            return entryPoint;
+        }
+
+        public void close() {
+            sections = null;
+        }
+
+        private Image image;
+    }
+
+    /**
+     * A COFF section whose contents are held in memory.
+     */
+    private static class CachedSection extends CoffSection {
+        CachedSection(Coff coff, String name, boolean executable,
+                      boolean readOnly, boolean initialized, int numPages,
+                      int firstVPN, byte[] contents) {
+            super(coff, name, executable, readOnly, numPages, firstVPN);
+
+            this.initialized = initialized;
+            this.contents = contents;
+        }
+
+        public void loadPage(int spn, int ppn) {
+            Lib.assertTrue(spn >= 0 && spn < numPages);
+            Lib.assertTrue(ppn >= 0 && ppn < Machine.processor().getNumPhysPages());
+
+            int pageSize = Processor.pageSize;
+            byte[] memory = Machine.processor().getMemory();
+            int paddr = ppn * pageSize;
+            int initlen = 0;
+
+            if (initialized)
+                initlen = Math.max(0, Math.min(pageSize,
+                        contents.length - spn * pageSize));
+
+            if (initlen > 0)
+                System.arraycopy(contents, spn * pageSize, memory, paddr, initlen);
+
+            Arrays.fill(memory, paddr + initlen, paddr + pageSize, (byte) 0);
+        }
+
+        private byte[] contents;
+    }
+
+    private int capacity;
+    private LinkedHashMap<String, Image> images;
+    private Map<String, Integer> stamps = new HashMap<String, Integer>();
+    private Lock mutex = new Lock();
+
+    private static final int headerLength = 20;
+    private static final int aoutHeaderLength = 28;
+
+    private static final char dbgCoff = 'c';
+}
@@ -0,0 +1,69 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.Condition2;
+import nachos.threads.KThread;
+import nachos.threads.Lock;
+
+import java.util.LinkedList;
+
+/**
+ * A pool of kernel threads that carry out I/O on behalf of user processes,
+ * so that a process can keep running while its requests wait on the file
+ * system. Jobs are run in the order they are submitted, by whichever worker
+ * is free first. The workers are only created when the first job arrives.
+ */
+public class IOWorkerPool {
+    /**
+     * Allocate a new worker pool.
+     *
+     * @param numWorkers the number of kernel threads in the pool.
+     */
+    public IOWorkerPool(int numWorkers) {
+        Lib.assertTrue(numWorkers > 0);
+
+        this.numWorkers = numWorkers;
+    }
+
+    /**
+     * Queue a job to be run by one of the workers. Does not block.
+     *
+     * @param job the job to run.
+     */
+    public void submit(Runnable job) {
+        lock.acquire();
+        if (!started) {
+            started = true;
+            for (int i = 0; i < numWorkers; i++) {
+                new KThread(new Runnable() {
+                    public void run() {
+                        work();
+                    }
+                }).setName("I/O worker " + i).fork();
+            }
+        }
+
+        jobs.add(job);
+        jobAvailable.wake();
+        lock.release();
+    }
+
+    private void work() {
+        while (true) {
+            lock.acquire();
+            while (jobs.isEmpty())
+                jobAvailable.sleep();
+            Runnable job = jobs.removeFirst();
+            lock.release();
+
+            job.run();
+        }
+    }
+
+    private int numWorkers;
+    private boolean started = false;
+    private LinkedList<Runnable> jobs = new LinkedList<Runnable>();
+
+    private Lock lock = new Lock();
+    private Condition2 jobAvailable = new Condition2(lock);
+}
@@ -0,0 +1,233 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.Condition2;
+import nachos.threads.Lock;
+
+/**
+ * A one-way channel between processes, backed by a ring buffer in kernel
+ * memory. Data written to the write end can be read from the read end in the
+ * same order. Readers block while the pipe is empty and writers block while it
+ * is full.
+ * <p>
+ * <p>
+ * Both ends are <tt>OpenFile</tt>s, so they can be used anywhere a file can.
+ * When the kernel moves data between a pipe and a user buffer, it should use
+ * <tt>Pipe.End.transfer()</tt>, which copies straight between the ring buffer
+ * and the process's pages.
+ * <p>
+ * <p>
+ * An end can be held by several processes at once, since <tt>exec()</tt>
+ * hands a child the descriptors of its parent. Each holder gets the same end
+ * from <tt>End.duplicate()</tt> and closes it once; readers only see end of
+ * file, and writers only see the pipe as broken, when the last holder of the
+ * other end has closed it.
+ */
+public class Pipe {
+    /**
+     * Allocate a new pipe.
+     *
+     * @param capacity the number of bytes the pipe can hold.
+     */
+    public Pipe(int capacity) {
+        buffer = new byte[capacity];
+        readEnd = new ReadEnd();
+        writeEnd = new WriteEnd();
+    }
+
+    /**
+     * Return the end of this pipe that data is read from.
+     *
+     * @return the read end.
+     */
+    public End getReadEnd() {
+        return readEnd;
+    }
+
+    /**
+     * Return the end of this pipe that data is written to.
+     *
+     * @return the write end.
+     */
+    public End getWriteEnd() {
+        return writeEnd;
+    }
+
+    /**
+     * Wait until there is data to read, or no more will ever arrive. Reads of
+     * no bytes do not wait.
+     *
+     * @return the number of bytes that can be read, or 0 at end of file.
+     */
+    private int awaitData() {
+        while (count == 0 && writerOpen)
+            dataAvailable.sleep();
+        return count;
+    }
+
+    /**
+     * Wait until there is room to write, or the data can never be read.
+     *
+     * @return the number of bytes that can be written, or 0 if the read end is
+     * closed.
+     */
+    private int awaitSpace() {
+        while (count == buffer.length && readerOpen)
+            spaceAvailable.sleep();
+        return readerOpen ? buffer.length - count : 0;
+    }
+
+    /**
+     * An end of a pipe.
+     */
+    public abstract class End extends OpenFile {
+        End() {
+            super(null, "pipe");
+        }
+
+        /**
+         * Add a holder to this end, which must close it separately.
+         *
+         * @return this end.
+         */
+        public End duplicate() {
+            lock.acquire();
+            Lib.assertTrue(holders > 0);
+            holders++;
+            lock.release();
+            return this;
+        }
+
+        /**
+         * Drop a holder of this end, and shut the end once none are left.
+         */
+        public void close() {
+            lock.acquire();
+            if (holders > 0 && --holders == 0)
+                shutdown();
+            lock.release();
+        }
+
+        /**
+         * Shut this end after its last holder has closed it. Called with the
+         * pipe's lock held.
+         */
+        abstract void shutdown();
+
+        /**
+         * Move data between this end of the pipe and the virtual memory of a
+         * process, without an intermediate buffer.
+         *
+         * @param process the process that owns the user buffer.
+         * @param vaddr   the first byte of the user buffer.
+         * @param length  the number of bytes to transfer.
+         * @return the number of bytes transferred, or -1 on failure.
+         */
+        public abstract int transfer(UserProcess process, int vaddr, int length);
+
+        private int holders = 1;
+    }
+
+    private class ReadEnd extends End {
+        public int read(byte[] buf, int offset, int length) {
+            lock.acquire();
+            int amount = 0;
+            if (length > 0 && readerOpen && awaitData() > 0) {
+                while (amount < length && count > 0) {
+                    int chunk = Math.min(length - amount,
+                            Math.min(count, buffer.length - head));
+                    System.arraycopy(buffer, head, buf, offset + amount, chunk);
+                    consume(chunk);
+                    amount += chunk;
+                }
+            }
+            lock.release();
+            return amount;
+        }
+
+        public int transfer(UserProcess process, int vaddr, int length) {
+            lock.acquire();
+            int amount = 0;
+            if (length > 0 && readerOpen && awaitData() > 0) {
+                while (amount < length && count > 0) {
+                    int chunk = Math.min(length - amount,
+                            Math.min(count, buffer.length - head));
+                    int copied = process.writeVirtualMemory(vaddr + amount,
+                            buffer, head, chunk);
+                    consume(copied);
+                    amount += copied;
+                    if (copied < chunk)
+                        break;
+                }
+            }
+            lock.release();
+            return (amount == 0 && length > 0 && count > 0) ? -1 : amount;
+        }
+
+        void shutdown() {
+            readerOpen = false;
+            spaceAvailable.wakeAll();
+        }
+
+        private void consume(int amount) {
+            head = (head + amount) % buffer.length;
+            count -= amount;
+            spaceAvailable.wakeAll();
+        }
+    }
+
+    private class WriteEnd extends End {
+        public int write(byte[] buf, int offset, int length) {
+            lock.acquire();
+            int amount = 0;
+            while (writerOpen && amount < length && awaitSpace() > 0) {
+                int tail = (head + count) % buffer.length;
+                int chunk = Math.min(length - amount,
+                        Math.min(buffer.length - count, buffer.length - tail));
+                System.arraycopy(buf, offset + amount, buffer, tail, chunk);
+                produce(chunk);
+                amount += chunk;
+            }
+            lock.release();
+            return amount == 0 && length > 0 ? -1 : amount;
+        }
+
+        public int transfer(UserProcess process, int vaddr, int length) {
+            lock.acquire();
+            int amount = 0;
+            while (writerOpen && amount < length && awaitSpace() > 0) {
+                int tail = (head + count) % buffer.length;
+                int chunk = Math.min(length - amount,
+                        Math.min(buffer.length - count, buffer.length - tail));
+                int copied = process.readVirtualMemory(vaddr + amount,
+                        buffer, tail, chunk);
+                produce(copied);
+                amount += copied;
+                if (copied < chunk)
+                    break;
+            }
+            lock.release();
+            return amount == 0 && length > 0 ? -1 : amount;
+        }
+
+        void shutdown() {
+            writerOpen = false;
+            dataAvailable.wakeAll();
+        }
+
+        private void produce(int amount) {
+            count += amount;
+            dataAvailable.wakeAll();
+        }
+    }
+
+    private byte[] buffer;
+    private int head = 0, count = 0;
+    private boolean readerOpen = true, writerOpen = true;
+
+    private End readEnd, writeEnd;
+
+    private Lock lock = new Lock();
+    private Condition2 dataAvailable = new Condition2(lock);
+    private Condition2 spaceAvailable = new Condition2(lock);
+}
@@ -0,0 +1,147 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+
+/**
+ * Resource usage of a single user process. <tt>Stats</tt> only keeps
+ * machine-wide totals; this class splits them up by process, so that the
+ * programs dominating a workload can be picked out.
+ * <p>
+ * <p>
+ * Simulated time is charged to the mode the process was in: it is in user
+ * mode until it traps into the kernel, and back in user mode when the
+ * exception handler returns. Time during which the process is switched out
+ * is charged to nobody.
+ */
+public class ProcessStats {
+    /**
+     * Allocate a new statistics object.
+     *
+     * @param numSyscalls the number of syscalls to count separately.
+     */
+    public ProcessStats(int numSyscalls) {
+        syscalls = new int[numSyscalls];
+        lastTick = Machine.timer().getTime();
+    }
+
+    /**
+     * Note that the process is being switched in.
+     */
+    public void switchIn() {
+        lastTick = Machine.timer().getTime();
+    }
+
+    /**
+     * Note that the process is being switched out.
+     */
+    public void switchOut() {
+        update();
+    }
+
+    /**
+     * Note that the process has trapped into the kernel.
+     *
+     * @param cause the exception that caused the trap.
+     */
+    public void enterKernel(int cause) {
+        update();
+        inKernel = true;
+
+        if (cause == Processor.exceptionPageFault)
+            pageFaults++;
+        else if (cause == Processor.exceptionTLBMiss)
+            tlbMisses++;
+    }
+
+    /**
+     * Note that the process is returning to user mode.
+     */
+    public void leaveKernel() {
+        update();
+        inKernel = false;
+    }
+
+    /**
+     * Count a syscall.
+     *
+     * @param syscall the syscall number.
+     */
+    public void countSyscall(int syscall) {
+        if (syscall >= 0 && syscall < syscalls.length)
+            syscalls[syscall]++;
+    }
+
+    /**
+     * Charge the time since the last mode transition to the current mode.
+     * Must only be called while the process is running.
+     */
+    public void update() {
+        long now = Machine.timer().getTime();
+        if (inKernel)
+            kernelTicks += now - lastTick;
+        else
+            userTicks += now - lastTick;
+        lastTick = now;
+    }
+
+    /**
+     * Return a printable report of these statistics.
+     *
+     * @param pid           the ID of the process.
+     * @param residentPages the number of physical pages the process maps.
+     * @return the report, one line per kind of resource.
+     */
+    public String report(int pid, int residentPages) {
+        StringBuffer calls = new StringBuffer();
+        int total = 0;
+        for (int i = 0; i < syscalls.length; i++) {
+            if (syscalls[i] != 0) {
+                calls.append(" " + i + ":" + syscalls[i]);
+                total += syscalls[i];
+            }
+        }
+
+        return "Process " + pid + "\n"
+                + "Ticks: kernel " + kernelTicks + ", user " + userTicks + "\n"
+                + "Syscalls: total " + total + calls + "\n"
+                + "File I/O: bytes read " + bytesRead
+                + ", written " + bytesWritten + "\n"
+                + "Paging: page faults " + pageFaults
+                + ", TLB misses " + tlbMisses
+                + ", resident pages " + residentPages + "\n";
+    }
+
+    /**
+     * The simulated time the process has spent in kernel mode.
+     */
+    public long kernelTicks = 0;
+    /**
+     * The simulated time the process has spent in user mode.
+     */
+    public long userTicks = 0;
+    /**
+     * The number of times each syscall has been made, by syscall number.
+     */
+    public int[] syscalls;
+    /**
+     * The number of bytes read by <tt>read</tt>, <tt>readv</tt> and
+     * <tt>aio_read</tt>.
+     */
+    public long bytesRead = 0;
+    /**
+     * The number of bytes written by <tt>write</tt>, <tt>writev</tt> and
+     * <tt>aio_write</tt>.
+     */
+    public long bytesWritten = 0;
+    /**
+     * The number of page faults the process has taken.
+     */
+    public int pageFaults = 0;
+    /**
+     * The number of TLB misses the process has taken.
+     */
+    public int tlbMisses = 0;
+
+    private boolean inKernel = false;
+    private long lastTick;
+}
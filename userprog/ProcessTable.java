@@ -0,0 +1,143 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+
+/**
+ * A kernel-wide table of live processes, indexed by process ID. Process IDs
+ * are kept as primitive keys in an open-addressed hash table, so looking up,
+ * adding and removing a process takes constant time on average and allocates
+ * nothing.
+ * <p>
+ * <p>
+ * A process is entered in the table when it starts running, and stays there
+ * until its exit status can no longer be collected: when its parent joins
+ * it, or once it has finished with no parent left to join it.
+ * <p>
+ * <p>
+ * The table disables interrupts around each operation, so it may be used
+ * from any kernel thread.
+ */
+public class ProcessTable {
+    /**
+     * Allocate a new, empty process table.
+     */
+    public ProcessTable() {
+        keys = new int[initialCapacity];
+        values = new UserProcess[initialCapacity];
+    }
+
+    /**
+     * Return the process with the specified ID.
+     *
+     * @param pid the process ID.
+     * @return the process, or <tt>null</tt> if there is none.
+     */
+    public UserProcess get(int pid) {
+        boolean intStatus = Machine.interrupt().disable();
+        int slot = find(pid);
+        UserProcess process = keys[slot] == pid ? values[slot] : null;
+        Machine.interrupt().restore(intStatus);
+        return process;
+    }
+
+    /**
+     * Enter a process in the table.
+     *
+     * @param pid     the ID of the process, which must be positive and not
+     *                already in the table.
+     * @param process the process.
+     */
+    public void put(int pid, UserProcess process) {
+        Lib.assertTrue(pid > 0 && process != null);
+
+        boolean intStatus = Machine.interrupt().disable();
+        if ((size + 1) * 2 > keys.length)
+            resize(keys.length * 2);
+
+        int slot = find(pid);
+        Lib.assertTrue(keys[slot] == empty);
+        keys[slot] = pid;
+        values[slot] = process;
+        size++;
+        Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Remove a process from the table. Does nothing if it is not there.
+     *
+     * @param pid the ID of the process.
+     */
+    public void remove(int pid) {
+        boolean intStatus = Machine.interrupt().disable();
+        int slot = find(pid);
+        if (keys[slot] == pid) {
+            keys[slot] = empty;
+            values[slot] = null;
+            size--;
+
+            // shift back the entries that probed past the freed slot, so
+            // that every entry stays reachable without tombstones
+            int mask = keys.length - 1;
+            for (int next = (slot + 1) & mask; keys[next] != empty;
+                 next = (next + 1) & mask) {
+                int home = hash(keys[next]) & mask;
+                if (((next - home) & mask) >= ((next - slot) & mask)) {
+                    keys[slot] = keys[next];
+                    values[slot] = values[next];
+                    keys[next] = empty;
+                    values[next] = null;
+                    slot = next;
+                }
+            }
+        }
+        Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Return the number of processes in the table.
+     *
+     * @return the number of processes in the table.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Return the slot holding the specified key, or the empty slot where it
+     * would be inserted.
+     */
+    private int find(int pid) {
+        int mask = keys.length - 1;
+        int slot = hash(pid) & mask;
+        while (keys[slot] != empty && keys[slot] != pid)
+            slot = (slot + 1) & mask;
+        return slot;
+    }
+
+    private void resize(int capacity) {
+        int[] oldKeys = keys;
+        UserProcess[] oldValues = values;
+
+        keys = new int[capacity];
+        values = new UserProcess[capacity];
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != empty) {
+                int slot = find(oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    private static int hash(int pid) {
+        // process IDs are sequential; spread them over the table
+        return pid * 0x9E3779B9;
+    }
+
+    private int[] keys;
+    private UserProcess[] values;
+    private int size = 0;
+
+    private static final int empty = 0;
+    private static final int initialCapacity = 16;
+}
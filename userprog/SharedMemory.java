@@ -0,0 +1,143 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The kernel-wide table of shared memory segments. A segment is named by a
+ * key chosen by the cooperating programs, and is backed by physical pages
+ * that every attached process maps into its own page table.
+ * <p>
+ * <p>
+ * A segment is given physical pages, zero-filled, when it is first
+ * attached. A segment is referenced both by its attachments and by the
+ * processes that looked it up with <tt>get()</tt>, which release it on
+ * exit. Once neither is left, its pages are returned to the free page list
+ * and the segment is destroyed. Until then its contents survive even while
+ * nothing is attached, so a producer may detach before a consumer attaches.
+ * <p>
+ * <p>
+ * All methods must be called with <tt>UserKernel.pageLock</tt> held.
+ */
+public class SharedMemory {
+    /**
+     * Allocate a new, empty shared memory table.
+     */
+    public SharedMemory() {
+    }
+
+    /**
+     * Return the ID of the segment with the specified key, creating it if
+     * there is none. Each successful call must be matched by a call to
+     * <tt>release()</tt>.
+     *
+     * @param key      the key of the segment.
+     * @param numPages the number of pages the caller needs.
+     * @return the ID of the segment, or -1 if an existing segment is too
+     * small.
+     */
+    public int get(int key, int numPages) {
+        Segment segment = segmentsByKey.get(key);
+        if (segment == null) {
+            segment = new Segment(key, nextId++, numPages);
+            segmentsByKey.put(key, segment);
+            segmentsById.put(segment.id, segment);
+        } else if (numPages > segment.numPages) {
+            return -1;
+        }
+        segment.holders++;
+        return segment.id;
+    }
+
+    /**
+     * Drop a reference taken by <tt>get()</tt>. A segment with no holders
+     * left that is not attached anywhere is destroyed.
+     *
+     * @param id the ID returned by <tt>get()</tt>.
+     */
+    public void release(int id) {
+        Segment segment = segmentsById.get(id);
+        Lib.assertTrue(segment != null && segment.holders > 0);
+
+        if (--segment.holders == 0 && segment.references == 0)
+            destroy(segment);
+    }
+
+    /**
+     * Attach a segment, giving it physical pages if this is its only
+     * attachment.
+     *
+     * @param id the ID of the segment.
+     * @return the physical page numbers backing the segment, or
+     * <tt>null</tt> if there is no such segment or not enough free memory.
+     */
+    public int[] attach(int id) {
+        Segment segment = segmentsById.get(id);
+        if (segment == null)
+            return null;
+
+        if (segment.ppns == null) {
+            if (UserKernel.freePhysicalPages.size() < segment.numPages)
+                return null;
+
+            byte[] memory = Machine.processor().getMemory();
+            segment.ppns = new int[segment.numPages];
+            for (int i = 0; i < segment.numPages; i++) {
+                int ppn = UserKernel.freePhysicalPages.pollFirst();
+                Arrays.fill(memory, ppn * Processor.pageSize,
+                        (ppn + 1) * Processor.pageSize, (byte) 0);
+                segment.ppns[i] = ppn;
+            }
+            Lib.debug(dbgProcess, "\tallocated shared memory segment " + id);
+        }
+
+        segment.references++;
+        return segment.ppns;
+    }
+
+    /**
+     * Drop one attachment of a segment. A segment with no attachments left
+     * that no process holds is destroyed.
+     *
+     * @param id the ID of the segment.
+     */
+    public void detach(int id) {
+        Segment segment = segmentsById.get(id);
+        Lib.assertTrue(segment != null && segment.references > 0);
+
+        if (--segment.references == 0 && segment.holders == 0)
+            destroy(segment);
+    }
+
+    private void destroy(Segment segment) {
+        if (segment.ppns != null) {
+            for (int i = 0; i < segment.numPages; i++)
+                UserKernel.freePhysicalPages.addLast(segment.ppns[i]);
+        }
+        segmentsByKey.remove(segment.key);
+        segmentsById.remove(segment.id);
+        Lib.debug(dbgProcess, "\tfreed shared memory segment " + segment.id);
+    }
+
+    private static class Segment {
+        Segment(int key, int id, int numPages) {
+            this.key = key;
+            this.id = id;
+            this.numPages = numPages;
+        }
+
+        int key, id, numPages;
+        int[] ppns = null;
+        int references = 0;
+        int holders = 0;    // get() calls not yet released
+    }
+
+    private Map<Integer, Segment> segmentsByKey = new HashMap<Integer, Segment>();
+    private Map<Integer, Segment> segmentsById = new HashMap<Integer, Segment>();
+    private int nextId = 0;
+
+    private static final char dbgProcess = 'a';
+}
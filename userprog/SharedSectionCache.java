@@ -0,0 +1,112 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A kernel-wide cache of the read-only sections of running executables.
+ * Processes running the same executable map its read-only sections
+ * (<tt>.text</tt>, <tt>.rdata</tt>) onto the same physical pages instead of
+ * loading a private copy each.
+ * <p>
+ * <p>
+ * A section is identified by the image key of its executable (see
+ * <tt>CoffCache.CachedCoff.getImageKey()</tt>), which changes whenever the
+ * file is modified, and its index within the executable. Pages are reference
+ * counted by the number of processes mapping the section, and are returned to
+ * the free page list when the last of them unloads.
+ * <p>
+ * <p>
+ * All methods must be called with <tt>UserKernel.pageLock</tt> held.
+ */
+public class SharedSectionCache {
+    /**
+     * Allocate a new, empty shared section cache.
+     */
+    public SharedSectionCache() {
+    }
+
+    /**
+     * Return the number of pages of the specified section that are already
+     * resident in this cache.
+     *
+     * @param imageKey the key of the executable.
+     * @param section  the index of the section in the executable.
+     * @return the number of resident pages, or 0 if the section has not been
+     * loaded by any running process.
+     */
+    public int residentPages(String imageKey, int section) {
+        SharedSection shared = sections.get(sectionKey(imageKey, section));
+        return shared == null ? 0 : shared.ppns.length;
+    }
+
+    /**
+     * Map the specified read-only section, loading it into free physical
+     * pages if no running process has it loaded already. The caller must have
+     * checked that enough free pages are available.
+     *
+     * @param imageKey the key of the executable.
+     * @param index    the index of the section in the executable.
+     * @param section  the section itself.
+     * @return the physical page numbers backing the section.
+     */
+    public int[] acquire(String imageKey, int index, CoffSection section) {
+        Lib.assertTrue(section.isReadOnly());
+
+        String key = sectionKey(imageKey, index);
+        SharedSection shared = sections.get(key);
+        if (shared == null) {
+            shared = new SharedSection(section.getLength());
+            for (int i = 0; i < shared.ppns.length; i++) {
+                shared.ppns[i] = UserKernel.freePhysicalPages.pollFirst();
+                section.loadPage(i, shared.ppns[i]);
+            }
+            sections.put(key, shared);
+            Lib.debug(dbgProcess, "\tloaded shared section " + key);
+        }
+
+        shared.references++;
+        return shared.ppns;
+    }
+
+    /**
+     * Drop one reference to the specified section. If no process maps it any
+     * more, its physical pages are freed.
+     *
+     * @param imageKey the key of the executable.
+     * @param index    the index of the section in the executable.
+     */
+    public void release(String imageKey, int index) {
+        String key = sectionKey(imageKey, index);
+        SharedSection shared = sections.get(key);
+        Lib.assertTrue(shared != null && shared.references > 0);
+
+        if (--shared.references == 0) {
+            for (int i = 0; i < shared.ppns.length; i++)
+                UserKernel.freePhysicalPages.addLast(shared.ppns[i]);
+            sections.remove(key);
+            Lib.debug(dbgProcess, "\tfreed shared section " + key);
+        }
+    }
+
+    private static String sectionKey(String imageKey, int section) {
+        return imageKey + "/" + section;
+    }
+
+    private static class SharedSection {
+        SharedSection(int numPages) {
+            ppns = new int[numPages];
+            references = 0;
+        }
+
+        int[] ppns;
+        int references;
+    }
+
+    private Map<String, SharedSection> sections =
+            new HashMap<String, SharedSection>();
+
+    private static final char dbgProcess = 'a';
+}
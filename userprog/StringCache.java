@@ -0,0 +1,85 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+
+import java.util.Arrays;
+
+/**
+ * A small direct-mapped cache of strings read from user memory. Programs
+ * pass the same file names and arguments to the kernel over and over, so
+ * converting the bytes of a string that is already cached returns the
+ * existing <tt>String</tt> instead of allocating a new one.
+ * <p>
+ * <p>
+ * Each string hashes to a single slot; a string that misses replaces the
+ * slot's previous occupant.
+ */
+public class StringCache {
+    /**
+     * Allocate a new string cache.
+     *
+     * @param size the number of slots, which must be a power of two.
+     */
+    public StringCache(int size) {
+        Lib.assertTrue(size > 0 && (size & (size - 1)) == 0);
+
+        entries = new Entry[size];
+    }
+
+    /**
+     * Return the string made of the specified bytes, from this cache if
+     * possible.
+     *
+     * @param bytes  the array holding the string.
+     * @param length the number of bytes in the string, starting at index 0.
+     * @return the string.
+     */
+    public String intern(byte[] bytes, int length) {
+        int hash = 0;
+        for (int i = 0; i < length; i++)
+            hash = 31 * hash + bytes[i];
+
+        int slot = (hash ^ (hash >>> 16)) & (entries.length - 1);
+        Entry entry = entries[slot];
+        if (entry != null && entry.hash == hash && entry.bytes.length == length) {
+            int i = 0;
+            while (i < length && entry.bytes[i] == bytes[i])
+                i++;
+            if (i == length) {
+                hits++;
+                return entry.string;
+            }
+        }
+
+        misses++;
+        String string = new String(bytes, 0, length);
+        if (length <= maxCachedLength)
+            entries[slot] = new Entry(hash, Arrays.copyOf(bytes, length), string);
+        return string;
+    }
+
+    private static class Entry {
+        Entry(int hash, byte[] bytes, String string) {
+            this.hash = hash;
+            this.bytes = bytes;
+            this.string = string;
+        }
+
+        int hash;
+        byte[] bytes;
+        String string;
+    }
+
+    private Entry[] entries;
+
+    /**
+     * The number of strings found in this cache.
+     */
+    public int hits = 0;
+    /**
+     * The number of strings that had to be allocated.
+     */
+    public int misses = 0;
+
+    private static final int maxCachedLength = 64;
+}
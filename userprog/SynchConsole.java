@@ -92,6 +92,23 @@ public class SynchConsole {
 	return new File(false, true);
     }
 
+    /**
+     * Return a new <tt>OpenFile</tt> that can read or write this console
+     * just as the specified one can.
+     *
+     * @param	file	a file returned by <tt>openForReading()</tt> or
+     *			<tt>openForWriting()</tt>.
+     * @return	the new file, or <tt>null</tt> if <tt>file</tt> is not a file
+     *		of this console.
+     */
+    public OpenFile duplicate(OpenFile file) {
+	if (!(file instanceof File))
+	    return null;
+
+	File original = (File) file;
+	return new File(original.canRead, original.canWrite);
+    }
+
     private void sendInterrupt() {
 	writeWait.V();
     }
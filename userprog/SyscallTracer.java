@@ -0,0 +1,197 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.ThreadedKernel;
+
+/**
+ * Records the syscalls made by user processes. The most recent calls are kept
+ * in a fixed-size ring buffer, with their process, arguments, return value
+ * and start and end times in simulated ticks. Every call also goes into a
+ * latency histogram for its syscall number.
+ * <p>
+ * <p>
+ * Histograms use log-linear buckets: exact below 16 ticks, then eight
+ * buckets per power of two, so each bucket is within 12.5% of the latencies
+ * it holds. They are printed by <tt>print()</tt>, and the ring buffer can be
+ * dumped to a file for offline analysis with <tt>dump()</tt>.
+ */
+public class SyscallTracer {
+    /**
+     * Allocate a new tracer.
+     *
+     * @param numSyscalls the number of syscall numbers to keep histograms
+     *                    for.
+     * @param capacity    the number of calls the ring buffer holds.
+     */
+    public SyscallTracer(int numSyscalls, int capacity) {
+        Lib.assertTrue(capacity > 0);
+
+        histograms = new long[numSyscalls][numBuckets];
+        counts = new long[numSyscalls];
+        totals = new long[numSyscalls];
+        maxima = new long[numSyscalls];
+
+        this.capacity = capacity;
+        records = new int[capacity * intsPerRecord];
+        times = new long[capacity * 2];
+    }
+
+    /**
+     * Record a completed syscall.
+     *
+     * @param pid     the ID of the calling process.
+     * @param syscall the syscall number.
+     * @param a0      the first syscall argument.
+     * @param a1      the second syscall argument.
+     * @param a2      the third syscall argument.
+     * @param a3      the fourth syscall argument.
+     * @param result  the value returned to the process.
+     * @param start   the time the call started.
+     * @param end     the time the call returned.
+     */
+    public void record(int pid, int syscall, int a0, int a1, int a2, int a3,
+                       int result, long start, long end) {
+        boolean intStatus = Machine.interrupt().disable();
+
+        int slot = (int) (recorded++ % capacity);
+        int i = slot * intsPerRecord;
+        records[i] = pid;
+        records[i + 1] = syscall;
+        records[i + 2] = a0;
+        records[i + 3] = a1;
+        records[i + 4] = a2;
+        records[i + 5] = a3;
+        records[i + 6] = result;
+        times[slot * 2] = start;
+        times[slot * 2 + 1] = end;
+
+        if (syscall >= 0 && syscall < counts.length) {
+            long latency = end - start;
+            histograms[syscall][bucket(latency)]++;
+            counts[syscall]++;
+            totals[syscall] += latency;
+            maxima[syscall] = Math.max(maxima[syscall], latency);
+        }
+
+        Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Return the histogram bucket that holds the specified latency.
+     */
+    private static int bucket(long latency) {
+        if (latency < linearLimit)
+            return (int) Math.max(latency, 0);
+
+        int exponent = 63 - Long.numberOfLeadingZeros(latency);
+        int sub = (int) (latency >> (exponent - subBucketBits)) & (subBuckets - 1);
+        return linearLimit + (exponent - linearBits) * subBuckets + sub;
+    }
+
+    /**
+     * Return the largest latency that falls into the specified bucket.
+     */
+    private static long bucketLimit(int bucket) {
+        if (bucket < linearLimit)
+            return bucket;
+
+        int exponent = (bucket - linearLimit) / subBuckets + linearBits;
+        int sub = (bucket - linearLimit) % subBuckets;
+        return ((long) (subBuckets + sub + 1) << (exponent - subBucketBits)) - 1;
+    }
+
+    /**
+     * Return the latency below which the specified fraction of the calls to
+     * a syscall completed, to the precision of the histogram.
+     */
+    private long percentile(int syscall, double fraction) {
+        long target = (long) Math.ceil(counts[syscall] * fraction);
+        long seen = 0;
+        for (int b = 0; b < numBuckets; b++) {
+            seen += histograms[syscall][b];
+            if (seen >= Math.max(target, 1))
+                return Math.min(bucketLimit(b), maxima[syscall]);
+        }
+        return maxima[syscall];
+    }
+
+    /**
+     * Print the latency histogram summary of every syscall that was made.
+     */
+    public void print() {
+        System.out.println("Syscall latency (ticks): " + recorded + " calls");
+        for (int s = 0; s < counts.length; s++) {
+            if (counts[s] == 0)
+                continue;
+
+            System.out.println("\tsyscall " + s + ": count " + counts[s]
+                    + ", mean " + totals[s] / counts[s]
+                    + ", p50 " + percentile(s, 0.50)
+                    + ", p90 " + percentile(s, 0.90)
+                    + ", p99 " + percentile(s, 0.99)
+                    + ", max " + maxima[s]);
+        }
+    }
+
+    /**
+     * Write the calls in the ring buffer, oldest first, to a file. The file
+     * starts with the magic number <tt>0x4e545243</tt> ("NTRC"), a version
+     * number and the number of records. Each record then holds the pid,
+     * syscall number, four arguments and result as 32-bit integers, followed
+     * by the start and end ticks as 64-bit integers. All values are
+     * little-endian.
+     *
+     * @param fileName the file to create.
+     * @return <tt>true</tt> if the trace was written.
+     */
+    public boolean dump(String fileName) {
+        boolean intStatus = Machine.interrupt().disable();
+        int numRecords = (int) Math.min(recorded, capacity);
+        int first = (int) ((recorded - numRecords) % capacity);
+
+        byte[] data = new byte[headerSize + numRecords * recordSize];
+        Lib.bytesFromInt(data, 0, traceMagic);
+        Lib.bytesFromInt(data, 4, traceVersion);
+        Lib.bytesFromInt(data, 8, numRecords);
+
+        for (int r = 0; r < numRecords; r++) {
+            int slot = (first + r) % capacity;
+            int offset = headerSize + r * recordSize;
+            for (int i = 0; i < intsPerRecord; i++)
+                Lib.bytesFromInt(data, offset + i * 4, records[slot * intsPerRecord + i]);
+            for (int i = 0; i < 2; i++) {
+                long time = times[slot * 2 + i];
+                Lib.bytesFromInt(data, offset + intsPerRecord * 4 + i * 8, (int) time);
+                Lib.bytesFromInt(data, offset + intsPerRecord * 4 + i * 8 + 4,
+                        (int) (time >>> 32));
+            }
+        }
+        Machine.interrupt().restore(intStatus);
+
+        OpenFile file = ThreadedKernel.fileSystem.open(fileName, true);
+        if (file == null)
+            return false;
+        int written = file.write(data, 0, data.length);
+        file.close();
+        return written == data.length;
+    }
+
+    private long[][] histograms;
+    private long[] counts, totals, maxima;
+
+    private int capacity;
+    private long recorded = 0;
+    private int[] records;
+    private long[] times;
+
+    private static final int intsPerRecord = 7;
+    private static final int headerSize = 12;
+    private static final int recordSize = intsPerRecord * 4 + 2 * 8;
+    private static final int traceMagic = 0x4e545243;
+    private static final int traceVersion = 1;
+
+    private static final int linearBits = 4, linearLimit = 1 << linearBits;
+    private static final int subBucketBits = 3, subBuckets = 1 << subBucketBits;
+    private static final int numBuckets =
+            linearLimit + (64 - linearBits) * subBuckets;
+}
@@ -1,8 +1,12 @@
 package nachos.userprog;
 
+import nachos.filesys.FileSystemBenchmark;
 import nachos.machine.Coff;
+import nachos.machine.Config;
 import nachos.machine.Lib;
 import nachos.machine.Machine;
+import nachos.machine.OpenFile;
+import nachos.machine.OpenFileWithPosition;
 import nachos.machine.Processor;
 import nachos.threads.KThread;
 import nachos.threads.ThreadedKernel;
@@ -38,6 +42,25 @@ public class UserKernel extends ThreadedKernel {
     // linked list of free physical pages
     public static Lock pageLock = new Lock(); // lock for modifying physical pages
     public static LinkedList<Integer> freePhysicalPages = new LinkedList<>();
+    // read-only sections shared between processes, guarded by pageLock
+    public static SharedSectionCache sharedSections = new SharedSectionCache();
+    // shared memory segments, guarded by pageLock
+    public static SharedMemory sharedMemory = new SharedMemory();
+    // parsed executables, so repeated execs skip the file system
+    public static CoffCache coffCache;
+    // the most pages a process image and its heap may occupy
+    public static int maxProcessPages;
+    // kernel threads that run asynchronous I/O for user processes
+    public static IOWorkerPool ioWorkers;
+    // every process whose exit status may still be collected, by ID
+    public static ProcessTable processes = new ProcessTable();
+    // whether open files get read-ahead and write-behind, and how much
+    public static boolean bufferedFiles;
+    public static int readAheadBlocks, writeBehindBytes;
+    // file names and arguments recently read from user memory
+    public static StringCache stringCache;
+    // records syscalls and their latencies, if UserKernel.traceSyscalls is set
+    public static SyscallTracer syscallTracer;
 
     /**
      * Allocate a new user kernel.
@@ -67,6 +90,20 @@ public class UserKernel extends ThreadedKernel {
 
         console = new SynchConsole(Machine.console());
 
+        coffCache = new CoffCache(Config.getInteger("UserKernel.coffCacheSize", 8));
+        maxProcessPages = Config.getInteger("UserKernel.maxProcessPages",
+                Machine.processor().getNumPhysPages());
+        ioWorkers = new IOWorkerPool(Config.getInteger("UserKernel.numIOWorkers", 4));
+        fileManager = new FileManager();
+        bufferedFiles = Config.getBoolean("UserKernel.bufferedFiles", false);
+        readAheadBlocks = Config.getInteger("UserKernel.readAheadBlocks", 4);
+        writeBehindBytes = Config.getInteger("UserKernel.writeBehindBytes",
+                4 * Processor.pageSize);
+        stringCache = new StringCache(Config.getInteger("UserKernel.stringCacheSize", 64));
+        if (Config.getBoolean("UserKernel.traceSyscalls", false))
+            syscallTracer = new SyscallTracer(UserProcess.numSyscalls,
+                    Config.getInteger("UserKernel.traceBufferSize", 1024));
+
         Machine.processor().setExceptionHandler(new Runnable() {
             public void run() {
                 exceptionHandler();
@@ -76,6 +113,10 @@ public class UserKernel extends ThreadedKernel {
         if (freePhysicalPages.size() == 0)
             for (int i = 0; i < Machine.processor().getNumPhysPages(); i++)
                 freePhysicalPages.add(i);
+
+        // before the console self test, which waits for a q to be typed
+        if (Config.getBoolean("FileSystemBenchmark.run", false))
+            FileSystemBenchmark.run();
     }
 
     /**
@@ -116,7 +157,9 @@ public class UserKernel extends ThreadedKernel {
 
         UserProcess process = ((UThread) KThread.currentThread()).process;
         int cause = Machine.processor().readRegister(Processor.regCause);
+        process.getStats().enterKernel(cause);
         process.handleException(cause);
+        process.getStats().leaveKernel();
     }
 
     /**
@@ -141,79 +184,188 @@ public class UserKernel extends ThreadedKernel {
      * Terminate this kernel. Never returns.
      */
     public void terminate() {
+        if (syscallTracer != null) {
+            syscallTracer.print();
+
+            String traceFile = Config.getString("UserKernel.traceFile", null);
+            if (traceFile != null && !syscallTracer.dump(traceFile))
+                System.out.println("Unable to write syscall trace to " + traceFile);
+        }
+
         super.terminate();
     }
 
+    /**
+     * The kernel-wide registry of open files. All descriptors open on the
+     * same name share one underlying <tt>OpenFile</tt>, so a file costs one
+     * host handle no matter how many processes have it open; each descriptor
+     * keeps its own position.
+     * <p>
+     * <p>
+     * Names are spread over a fixed number of stripes by hash, each with its
+     * own lock, so processes working on different files rarely contend.
+     * A file unlinked while open stays usable through the existing
+     * descriptors, cannot be opened again, and is removed when the last
+     * descriptor is closed.
+     */
     public static class FileManager {
-        Map<String, FileRecord> fileMap = new HashMap<String, FileRecord>();
+        private static final int NUM_STRIPES = 16;
+
+        private Stripe[] stripes = new Stripe[NUM_STRIPES];
+
+        public FileManager() {
+            for (int i = 0; i < NUM_STRIPES; i++)
+                stripes[i] = new Stripe();
+        }
+
+        private static class Stripe {
+            nachos.threads.Lock mutex = new nachos.threads.Lock();
+            Map<String, FileRecord> fileMap = new HashMap<String, FileRecord>();
+        }
 
         private static class FileRecord {
-            int number;    // Last bit of number represents whether that file should be unlinked, other part of it is the number of processes accessing it (start from 0, of course)
+            OpenFile file;
+            int references = 0;
+            boolean unlinked = false;
+        }
 
-            public FileRecord() {
-                number = 0;
+        private Stripe stripe(String fileName) {
+            return stripes[(fileName.hashCode() & 0x7FFFFFFF) % NUM_STRIPES];
+        }
+
+        /**
+         * Open a new descriptor on the specified file.
+         *
+         * @param fileName the name of the file.
+         * @param create   if <tt>true</tt>, create the file if it does not
+         *                 exist, or truncate it if it does.
+         * @return a descriptor with its own position, or <tt>null</tt> if the
+         * file could not be opened or is waiting to be removed.
+         */
+        OpenFile open(String fileName, boolean create) {
+            Stripe stripe = stripe(fileName);
+            stripe.mutex.acquire();
+            FileRecord record = stripe.fileMap.get(fileName);
+            if (record == null) {
+                OpenFile file = UserKernel.fileSystem.open(fileName, create);
+                if (file == null) {
+                    stripe.mutex.release();
+                    return null;
+                }
+                if (bufferedFiles)
+                    file = new BufferedOpenFile(file, readAheadBlocks, writeBehindBytes);
+                record = new FileRecord();
+                record.file = file;
+                stripe.fileMap.put(fileName, record);
+            } else if (record.unlinked) {
+                stripe.mutex.release();
+                return null;
+            } else if (create) {
+                // the shared handle was opened without truncating
+                if (record.file instanceof BufferedOpenFile)
+                    ((BufferedOpenFile) record.file).discard();
+                OpenFile truncated = UserKernel.fileSystem.open(fileName, true);
+                if (truncated == null) {
+                    stripe.mutex.release();
+                    return null;
+                }
+                truncated.close();
             }
+            record.references++;
+            stripe.mutex.release();
+            return new SharedOpenFile(fileName, record);
+        }
+
+        /**
+         * Open another descriptor on the file of a descriptor returned by
+         * <tt>open()</tt>, starting at the same position.
+         *
+         * @param file the descriptor to copy.
+         * @return the new descriptor, or <tt>null</tt> if <tt>file</tt> was
+         * not opened by this manager or has been closed.
+         */
+        OpenFile duplicate(OpenFile file) {
+            if (!(file instanceof SharedOpenFile))
+                return null;
+
+            SharedOpenFile shared = (SharedOpenFile) file;
+            Stripe stripe = stripe(shared.getName());
+            stripe.mutex.acquire();
+            FileRecord record = shared.record;
+            if (record != null)
+                record.references++;
+            stripe.mutex.release();
+            if (record == null)
+                return null;
+
+            SharedOpenFile copy = new SharedOpenFile(shared.getName(), record);
+            copy.seek(shared.tell());
+            return copy;
+        }
 
-            public boolean unlinked() {
-                return ((number & 01) != 0);
+        private void close(String fileName, FileRecord record) {
+            Stripe stripe = stripe(fileName);
+            stripe.mutex.acquire();
+            if (--record.references == 0) {
+                record.file.close();
+                if (record.unlinked)
+                    UserKernel.fileSystem.remove(fileName);// nobody else is using that file, and it should be deleted.
+                stripe.fileMap.remove(fileName);
             }
+            stripe.mutex.release();
         }
 
-        Lock mutex = new Lock();
+        /**
+         * Remove the specified file, or, if it is open, mark it to be removed
+         * when its last descriptor is closed.
+         *
+         * @param fileName the name of the file.
+         * @return <tt>true</tt> if the file existed.
+         */
+        boolean unlink(String fileName) {
+            Stripe stripe = stripe(fileName);
+            stripe.mutex.acquire();
+            FileRecord record = stripe.fileMap.get(fileName);
+            boolean success;
+            if (record == null)
+                success = UserKernel.fileSystem.remove(fileName);
+            else
+                success = record.unlinked = true;
+            stripe.mutex.release();
+            return success;
+        }
 
-        boolean open(String fileName) {
-            mutex.acquire();
-            if (!fileMap.containsKey(fileName)) {
-                FileRecord record = new FileRecord();
-                fileMap.put(fileName, record);
-                mutex.release();
-                return true;
+        /**
+         * A descriptor on a shared open file.
+         */
+        private class SharedOpenFile extends OpenFileWithPosition {
+            SharedOpenFile(String fileName, FileRecord record) {
+                super(UserKernel.fileSystem, fileName);
+                this.record = record;
             }
-            FileRecord record = fileMap.get(fileName);
-            if (record.unlinked()) {
-                mutex.release();
-                return false;
+
+            public int read(int pos, byte[] buf, int offset, int length) {
+                return record == null ? -1 : record.file.read(pos, buf, offset, length);
             }
-            record.number += 2;
-            mutex.release();
-            return true;
-        }
 
-        boolean close(String fileName) {
-            mutex.acquire();
-            if (!fileMap.containsKey(fileName)) {
-                mutex.release();
-                return false;
+            public int write(int pos, byte[] buf, int offset, int length) {
+                return record == null ? -1 : record.file.write(pos, buf, offset, length);
             }
-            FileRecord record = fileMap.get(fileName);
-            if (record.number <= 1) {
-                if (record.number == 1)
-                    UserKernel.fileSystem.remove(fileName);// nobody else is using that file, and it should be deleted.
-                fileMap.remove(record);    // simply remove this file, without deleting it.
-            } else
-                record.number -= 2;    // decrease it's count
-            mutex.release();
-            return true;
-        }
 
-        boolean unlink(String fileName) {
-            mutex.acquire();
-            if (!fileMap.containsKey(fileName)) {
-                mutex.release();
-                return false;
+            public int length() {
+                return record == null ? -1 : record.file.length();
             }
-            FileRecord record = fileMap.get(fileName);
-            if (record.number <= 1)    // should be deleted
-            {
-                UserKernel.fileSystem.remove(fileName);
-                fileMap.remove(record);
-            } else {
-                record.number = (record.number - 2) | 1;
+
+            public void close() {
+                if (record != null) {
+                    FileManager.this.close(getName(), record);
+                    record = null;
+                }
             }
-            mutex.release();
-            return true;
+
+            private FileRecord record;
         }
     }
 
-    public static FileManager fileManager = new FileManager();
+    public static FileManager fileManager;
 }
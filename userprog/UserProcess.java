@@ -2,10 +2,13 @@ package nachos.userprog;
 
 import nachos.machine.*;
 import nachos.threads.KThread;
-import nachos.threads.ThreadedKernel;
+import nachos.threads.Semaphore;
 
 import javax.crypto.Mac;
-import java.io.EOFException;
+import java.lang.reflect.Constructor;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 
 /**
@@ -31,9 +34,29 @@ public class UserProcess {
             syscallRead = 6,
             syscallWrite = 7,
             syscallClose = 8,
-            syscallUnlink = 9;
+            syscallUnlink = 9,
+            syscallMmap = 10,
+            syscallMunmap = 13,
+            syscallSbrk = 14,
+            syscallPipe = 15,
+            syscallReadv = 16,
+            syscallWritev = 17,
+            syscallAioRead = 18,
+            syscallAioWrite = 19,
+            syscallAioWait = 20,
+            syscallAioPoll = 21,
+            syscallRingSetup = 22,
+            syscallRingSubmit = 23,
+            syscallShmget = 24,
+            syscallShmat = 25,
+            syscallShmdt = 26;
+    /**
+     * One more than the largest syscall number.
+     */
+    static final int numSyscalls = syscallShmdt + 1;
     private static final int pageSize = Processor.pageSize;
     private static final char dbgProcess = 'a';
+    private static final char dbgStats = 'r';
     /**
      * The number of pages in the program's stack.
      */
@@ -50,6 +73,24 @@ public class UserProcess {
      * The number of contiguous pages occupied by the program.
      */
     protected int numPages;
+    /**
+     * The number of pages occupied by the program image, its stack and its
+     * arguments. Pages above these are mapped at run time.
+     */
+    protected int imagePages;
+    /**
+     * The first page of the heap, which lies between the data sections and
+     * the stack, and the number of pages reserved for it to grow into.
+     */
+    protected int heapStartPage, heapPages;
+    /**
+     * The current program break: the first address past the heap.
+     */
+    protected int heapBreak;
+    /**
+     * The key of the executable image in <tt>UserKernel.sharedSections</tt>.
+     */
+    protected String imageKey;
     private int initialPC, initialSP;
     private int argc, argv;
 
@@ -59,11 +100,42 @@ public class UserProcess {
     private int exitStatus;
     private UThread thread;
     private UserProcess parentProcess;
-    private LinkedList<UserProcess> children;
+    private HashSet<UserProcess> children;
+    /**
+     * The resources this process has used.
+     */
+    protected ProcessStats stats;
+    private boolean finished = false;
     private static final int MAX_FILE = 100;
+    private static final String PROC_PREFIX = "proc.";
+    private static final int MAX_STRING_LENGTH = 256;
+    /**
+     * Scratch space for <tt>readVirtualMemoryString()</tt> and
+     * <tt>handleExec()</tt>, reused by every call.
+     */
+    private byte[] stringBuffer, argvBuffer;
     private static final int UNHANDLED_EXCEPTION = -1234;
     private OpenFile[] fileList;
+    /**
+     * One bit per file descriptor, set while the descriptor is in use.
+     */
+    private long[] fileBitmap;
     private static final int BUFFER_SIZE = 1 << 9;
+    private static final int PIPE_SIZE = 4 * Processor.pageSize;
+    private static final int MAX_IOVEC = 16, IOVEC_SIZE = 8;
+    private static final int MAX_VECTOR_BYTES = 8 * Processor.pageSize;
+    private static final int MAX_ASYNC = 16;
+    private static final int MAX_ASYNC_BYTES = 16 * Processor.pageSize;
+    private AsyncRequest[] asyncRequests;
+    private static final int MAX_RING_ENTRIES = 64;
+    private static final int RING_HEADER_SIZE = 16, RING_SQE_SIZE = 20, RING_CQE_SIZE = 8;
+    private int ringAddress, ringEntries = 0;
+    private LinkedList<MappedRegion> mappedRegions;
+    private static final int MAX_SHM_PAGES = 64;
+    private LinkedList<SharedAttachment> sharedAttachments;
+    // shared memory segments looked up by shmget, released on exit
+    private LinkedList<Integer> sharedSegmentIds;
+    private static Constructor<?> processConstructor = null;
 
     /**
      * Allocate a new process.
@@ -72,9 +144,15 @@ public class UserProcess {
         boolean prevStatus = Machine.interrupt().disable();
         processId = processCount++;
         fileList = new OpenFile[MAX_FILE];
-        fileList[0] = UserKernel.console.openForReading();
-        fileList[1] = UserKernel.console.openForWriting();
-        children = new LinkedList<UserProcess>();
+        fileBitmap = new long[(MAX_FILE + 63) / 64];
+        fileList[allocateFileDescriptor()] = UserKernel.console.openForReading();
+        fileList[allocateFileDescriptor()] = UserKernel.console.openForWriting();
+        children = new HashSet<UserProcess>();
+        stats = new ProcessStats(numSyscalls);
+        mappedRegions = new LinkedList<MappedRegion>();
+        sharedAttachments = new LinkedList<SharedAttachment>();
+        sharedSegmentIds = new LinkedList<Integer>();
+        asyncRequests = new AsyncRequest[MAX_ASYNC];
         exitStatus = UNHANDLED_EXCEPTION;
         Machine.interrupt().restore(prevStatus);
     }
@@ -87,7 +165,17 @@ public class UserProcess {
      * @return a new process of the correct class.
      */
     public static UserProcess newUserProcess() {
-        return (UserProcess) Lib.constructObject(Machine.getProcessClassName());
+        // the constructor is looked up once, instead of by name every time
+        try {
+            if (processConstructor == null) {
+                Class<?> processClass = Lib.loadClass(Machine.getProcessClassName());
+                processConstructor = processClass.getConstructor();
+            }
+            return (UserProcess) processConstructor.newInstance();
+        } catch (Throwable e) {
+            Machine.terminate(e);
+            return null;
+        }
     }
 
     /**
@@ -102,6 +190,8 @@ public class UserProcess {
         if (!load(name, args))
             return false;
 
+        UserKernel.processes.put(processId, this);
+
         //new UThread(this).setName(name).fork();	// original
         thread = new UThread(this);
         thread.setName(name).fork();
@@ -114,6 +204,7 @@ public class UserProcess {
      * Called by <tt>UThread.saveState()</tt>.
      */
     public void saveState() {
+        stats.switchOut();
     }
 
     /**
@@ -122,6 +213,34 @@ public class UserProcess {
      */
     public void restoreState() {
         Machine.processor().setPageTable(pageTable);
+        stats.switchIn();
+    }
+
+    /**
+     * Return the resources this process has used.
+     *
+     * @return the statistics of this process.
+     */
+    public ProcessStats getStats() {
+        return stats;
+    }
+
+    /**
+     * Return a printable report of the resources this process has used.
+     *
+     * @return the report.
+     */
+    public String statsReport() {
+        if (UserKernel.currentProcess() == this)
+            stats.update();
+
+        int residentPages = 0;
+        if (pageTable != null)
+            for (TranslationEntry entry : pageTable)
+                if (entry != null && entry.valid)
+                    residentPages++;
+
+        return stats.report(processId, residentPages);
     }
 
     /**
@@ -130,6 +249,11 @@ public class UserProcess {
      * for the null terminator, and convert it to a <tt>java.lang.String</tt>,
      * without including the null terminator. If no null terminator is found,
      * returns <tt>null</tt>.
+     * <p>
+     * <p>
+     * The terminator is searched for directly in physical memory, a page at a
+     * time, so only the string itself is copied out. Strings that were read
+     * recently come from <tt>UserKernel.stringCache</tt>.
      *
      * @param vaddr     the starting virtual address of the null-terminated
      *                  string.
@@ -141,13 +265,33 @@ public class UserProcess {
     public String readVirtualMemoryString(int vaddr, int maxLength) {
         Lib.assertTrue(maxLength >= 0);
 
-        byte[] bytes = new byte[maxLength + 1];
+        if (stringBuffer == null || stringBuffer.length < maxLength)
+            stringBuffer = new byte[Math.max(maxLength, MAX_STRING_LENGTH)];
 
-        int bytesRead = readVirtualMemory(vaddr, bytes);
+        byte[] memory = Machine.processor().getMemory();
+        int length = 0;
+        while (length <= maxLength) {
+            int address = vaddr + length;
+            if (vaddr < 0 || address >= numPages * pageSize)
+                return null;
 
-        for (int length = 0; length < bytesRead; length++) {
-            if (bytes[length] == 0)
-                return new String(bytes, 0, length);
+            int page = address / pageSize;
+            TranslationEntry t = pageTable[page];
+            if (t == null || (!t.valid && !handlePageFault(page)))
+                return null;
+            t.used = true;
+
+            int offset = address % pageSize;
+            int paddr = t.ppn * pageSize + offset;
+            int count = Math.min(pageSize - offset, maxLength + 1 - length);
+            for (int i = 0; i < count; i++) {
+                byte b = memory[paddr + i];
+                if (b == 0)
+                    return UserKernel.stringCache.intern(stringBuffer, length + i);
+                if (length + i < maxLength)
+                    stringBuffer[length + i] = b;
+            }
+            length += count;
         }
 
         return null;
@@ -196,18 +340,19 @@ public class UserProcess {
         int start, end, pstart, pend;
         for (int page = firstPage; page <= lastPage; page++) {
             TranslationEntry t = pageTable[page];
-            if (t != null) {
-                // start and end are in the same page
-                start = Math.max(page * pageSize, vaddr);
-                end = Math.min((page + 1) * pageSize - 1, vaddr + length - 1);
+            if (t == null || (!t.valid && !handlePageFault(page)))
+                break;
 
-                pstart = t.ppn * pageSize + Machine.processor().offsetFromAddress(start);
-                pend  = t.ppn * pageSize + Machine.processor().offsetFromAddress(end);
+            // start and end are in the same page
+            start = Math.max(page * pageSize, vaddr);
+            end = Math.min((page + 1) * pageSize - 1, vaddr + length - 1);
 
-                System.arraycopy(memory, pstart, data, offset + amount, pend - pstart + 1);
-                amount += pend - pstart + 1;
-                t.used = true;
-            }
+            pstart = t.ppn * pageSize + Machine.processor().offsetFromAddress(start);
+            pend  = t.ppn * pageSize + Machine.processor().offsetFromAddress(end);
+
+            System.arraycopy(memory, pstart, data, offset + amount, pend - pstart + 1);
+            amount += pend - pstart + 1;
+            t.used = true;
         }
 
         return amount;
@@ -258,19 +403,21 @@ public class UserProcess {
         int start, end, pstart, pend;
         for (int page = firstPage; page <= lastPage; page++) {
             TranslationEntry t = pageTable[page];
-            if (t != null) {
-                // start and end are in the same page
-                start = Math.max(page * pageSize, vaddr);
-                end = Math.min((page + 1) * pageSize - 1, vaddr + length - 1);
-
-                pstart = t.ppn * pageSize + Machine.processor().offsetFromAddress(start);
-                pend  = t.ppn * pageSize + Machine.processor().offsetFromAddress(end);
-
-                System.arraycopy(data, offset + amount, memory, pstart, pend - pstart + 1);
-                amount += pend - pstart + 1;
-                t.used = true;
-                t.dirty = true;
-            }
+            // read-only pages may be shared with other processes
+            if (t == null || t.readOnly || (!t.valid && !handlePageFault(page)))
+                break;
+
+            // start and end are in the same page
+            start = Math.max(page * pageSize, vaddr);
+            end = Math.min((page + 1) * pageSize - 1, vaddr + length - 1);
+
+            pstart = t.ppn * pageSize + Machine.processor().offsetFromAddress(start);
+            pend  = t.ppn * pageSize + Machine.processor().offsetFromAddress(end);
+
+            System.arraycopy(data, offset + amount, memory, pstart, pend - pstart + 1);
+            amount += pend - pstart + 1;
+            t.used = true;
+            t.dirty = true;
         }
 
         return amount;
@@ -289,19 +436,13 @@ public class UserProcess {
     private boolean load(String name, String[] args) {
         Lib.debug(dbgProcess, "UserProcess.load(\"" + name + "\")");
 
-        OpenFile executable = ThreadedKernel.fileSystem.open(name, false);
+        CoffCache.CachedCoff executable = UserKernel.coffCache.load(name);
         if (executable == null) {
-            Lib.debug(dbgProcess, "\topen failed");
-            return false;
-        }
-
-        try {
-            coff = new Coff(executable);
-        } catch (EOFException e) {
-            executable.close();
             Lib.debug(dbgProcess, "\tcoff load failed");
             return false;
         }
+        coff = executable;
+        imageKey = executable.getImageKey();
 
         // make sure the sections are contiguous and start at page 0
         numPages = 0;
@@ -322,6 +463,8 @@ public class UserProcess {
             argv[i] = args[i].getBytes();
             // 4 bytes for argv[] pointer; then string plus one for null byte
             argsSize += 4 + argv[i].length + 1;
+            if (argsSize > pageSize)
+                break;
         }
         if (argsSize > pageSize) {
             coff.close();
@@ -332,33 +475,40 @@ public class UserProcess {
         // program counter initially points at the program entry point
         initialPC = coff.getEntryPoint();
 
+        // the heap grows into a reserved range of pages above the sections,
+        // up to the per-process memory limit
+        heapStartPage = numPages;
+        heapBreak = heapStartPage * pageSize;
+        heapPages = Math.max(0,
+                UserKernel.maxProcessPages - (numPages + stackPages + 1));
+        numPages += heapPages;
+
         // next comes the stack; stack pointer initially points to top of it
         numPages += stackPages;
         initialSP = numPages * pageSize;
 
         // and finally reserve 1 page for arguments
         numPages++;
+        imagePages = numPages;
 
         if (!loadSections())
             return false;
 
-        // store arguments in last page
+        // store arguments in last page, building it first and copying it in
+        // with a single write
         int entryOffset = (numPages - 1) * pageSize;
-        int stringOffset = entryOffset + args.length * 4;
+        int stringOffset = args.length * 4;
 
         this.argc = args.length;
         this.argv = entryOffset;
 
+        byte[] argPage = new byte[argsSize];
         for (int i = 0; i < argv.length; i++) {
-            byte[] stringOffsetBytes = Lib.bytesFromInt(stringOffset);
-            Lib.assertTrue(writeVirtualMemory(entryOffset, stringOffsetBytes) == 4);
-            entryOffset += 4;
-            Lib.assertTrue(writeVirtualMemory(stringOffset, argv[i]) ==
-                    argv[i].length);
-            stringOffset += argv[i].length;
-            Lib.assertTrue(writeVirtualMemory(stringOffset, new byte[]{0}) == 1);
-            stringOffset += 1;
+            Lib.bytesFromInt(argPage, i * 4, entryOffset + stringOffset);
+            System.arraycopy(argv[i], 0, argPage, stringOffset, argv[i].length);
+            stringOffset += argv[i].length + 1;
         }
+        Lib.assertTrue(writeVirtualMemory(entryOffset, argPage) == argsSize);
 
         return true;
     }
@@ -373,7 +523,13 @@ public class UserProcess {
     protected boolean loadSections() {
         UserKernel.pageLock.acquire();
         try {
-            if (numPages > UserKernel.freePhysicalPages.size()) {
+            // read-only sections another process has loaded cost no new pages
+            int neededPages = numPages - heapPages;
+            for (int s = 0; s < coff.getNumSections(); s++) {
+                if (coff.getSection(s).isReadOnly())
+                    neededPages -= UserKernel.sharedSections.residentPages(imageKey, s);
+            }
+            if (neededPages > UserKernel.freePhysicalPages.size()) {
                 coff.close();
                 Lib.debug(dbgProcess, "\tinsufficient physical memory");
                 return false;
@@ -388,17 +544,30 @@ public class UserProcess {
                 Lib.debug(dbgProcess, "\tinitializing " + section.getName()
                         + " section (" + section.getLength() + " pages)");
 
+                if (section.isReadOnly()) {
+                    int[] ppns = UserKernel.sharedSections.acquire(imageKey, s, section);
+                    for (int i = 0; i < section.getLength(); i++) {
+                        int vpn = section.getFirstVPN() + i;
+                        pageTable[nextPageTableIndex++] = new TranslationEntry(vpn,
+                                ppns[i], true, true, false, false);
+                    }
+                    continue;
+                }
+
                 for (int i = 0; i < section.getLength(); i++) {
                     int vpn = section.getFirstVPN() + i;
 
                     int ppn = UserKernel.freePhysicalPages.pollFirst();
                     pageTable[nextPageTableIndex++] = new TranslationEntry(vpn,
-                            ppn, true, section.isReadOnly(), false, false);
+                            ppn, true, false, false, false);
 
                     section.loadPage(i, ppn);
                 }
             }
 
+            // heap pages are only backed once sbrk() hands them out
+            nextPageTableIndex += heapPages;
+
             for (int s = 0; s < stackPages + 1; s++) {
                 int vpn = nextPageTableIndex, ppn = UserKernel.freePhysicalPages.pollFirst();
                 pageTable[nextPageTableIndex] = new TranslationEntry(vpn,
@@ -418,8 +587,19 @@ public class UserProcess {
     protected void unloadSections() {
         UserKernel.pageLock.acquire();
         try {
+            // only read-only sections are shared, and they are mapped read-only
+            for (int s = 0; s < coff.getNumSections(); s++) {
+                if (coff.getSection(s).isReadOnly())
+                    UserKernel.sharedSections.release(imageKey, s);
+            }
+            // shared memory pages are freed by their last user
+            while (sharedAttachments.size() > 0)
+                detachLocked(sharedAttachments.removeFirst());
+            while (sharedSegmentIds.size() > 0)
+                UserKernel.sharedMemory.release(sharedSegmentIds.removeFirst());
             for (int i = 0; i < pageTable.length; i++) {
-                UserKernel.freePhysicalPages.addLast(pageTable[i].ppn);
+                if (pageTable[i] != null && pageTable[i].valid && !pageTable[i].readOnly)
+                    UserKernel.freePhysicalPages.addLast(pageTable[i].ppn);
                 pageTable[i] = null;
             }
         } finally {
@@ -428,6 +608,121 @@ public class UserProcess {
         coff.close();
     }
 
+    /**
+     * Reserve a run of unused virtual pages above the loaded image, growing
+     * the page table if no hole left by an earlier unmapping is large enough.
+     * The reserved pages are marked invalid, so the first access to each one
+     * causes a page fault.
+     * <p>
+     * Runs may end at most <tt>UserKernel.maxProcessPages</tt> pages above
+     * the image, and never past the end of the 32-bit address space.
+     *
+     * @param pages the number of pages to reserve.
+     * @return the first virtual page number of the run, or -1 if there is no
+     * room for it.
+     */
+    protected int reservePages(int pages) {
+        int firstVPN = imagePages, run = 0;
+        for (int vpn = imagePages; vpn < numPages && run < pages; vpn++) {
+            if (pageTable[vpn] == null) {
+                run++;
+            } else {
+                firstVPN = vpn + 1;
+                run = 0;
+            }
+        }
+
+        long end = (long) firstVPN + pages;
+        if (pages <= 0 || end > (long) imagePages + UserKernel.maxProcessPages
+                || end * pageSize > Integer.MAX_VALUE)
+            return -1;
+
+        if (firstVPN + pages > numPages) {
+            TranslationEntry[] newPageTable = new TranslationEntry[firstVPN + pages];
+            System.arraycopy(pageTable, 0, newPageTable, 0, numPages);
+            pageTable = newPageTable;
+            numPages = pageTable.length;
+            Machine.processor().setPageTable(pageTable);
+        }
+
+        for (int vpn = firstVPN; vpn < firstVPN + pages; vpn++)
+            pageTable[vpn] = new TranslationEntry(vpn, -1, false, false, false, false);
+
+        return firstVPN;
+    }
+
+    /**
+     * Handle a fault on a page that is part of the address space but not yet
+     * backed by physical memory.
+     *
+     * @param vpn the virtual page that faulted.
+     * @return <tt>true</tt> if the page is now valid, or <tt>false</tt> if the
+     * address is not mapped or there is no free physical memory.
+     */
+    protected boolean handlePageFault(int vpn) {
+        if (vpn < 0 || vpn >= numPages || pageTable[vpn] == null)
+            return false;
+
+        // heap pages are zero-filled on first touch
+        if (vpn >= heapStartPage && vpn < heapStartPage + heapPages) {
+            int ppn = allocatePage();
+            if (ppn == -1)
+                return false;
+
+            byte[] memory = Machine.processor().getMemory();
+            Arrays.fill(memory, ppn * pageSize, (ppn + 1) * pageSize, (byte) 0);
+            pageTable[vpn].ppn = ppn;
+            pageTable[vpn].valid = true;
+            return true;
+        }
+
+        MappedRegion region = findRegion(vpn);
+        if (region == null)
+            return false;
+
+        int ppn = allocatePage();
+        if (ppn == -1)
+            return false;
+
+        // read whatever part of the page the file covers, zero the rest
+        byte[] memory = Machine.processor().getMemory();
+        int regionOffset = (vpn - region.firstVPN) * pageSize;
+        int length = Math.min(pageSize, region.length - regionOffset);
+        int amount = region.file.read(region.offset + regionOffset, memory,
+                ppn * pageSize, length);
+        if (amount < 0)
+            amount = 0;
+        Arrays.fill(memory, ppn * pageSize + amount, (ppn + 1) * pageSize, (byte) 0);
+
+        TranslationEntry entry = pageTable[vpn];
+        entry.ppn = ppn;
+        entry.valid = true;
+        entry.used = false;
+        entry.dirty = false;
+        return true;
+    }
+
+    private int allocatePage() {
+        UserKernel.pageLock.acquire();
+        try {
+            if (UserKernel.freePhysicalPages.isEmpty()) {
+                Lib.debug(dbgProcess, "\tinsufficient physical memory");
+                return -1;
+            }
+            return UserKernel.freePhysicalPages.pollFirst();
+        } finally {
+            UserKernel.pageLock.release();
+        }
+    }
+
+    private MappedRegion findRegion(int vpn) {
+        for (MappedRegion region : mappedRegions) {
+            if (vpn >= region.firstVPN && vpn < region.firstVPN + region.numPages)
+                return region;
+        }
+        return null;
+    }
+
     /**
      * Initialize the processor's registers in preparation for running the
      * program loaded into this process. Set the PC register to point at the
@@ -456,7 +751,7 @@ public class UserProcess {
      */
     private int handleHalt() {
 
-        Machine.halt();
+        Kernel.kernel.terminate();
 
         Lib.assertNotReached("Machine.halt() did not halt machine!");
         return 0;
@@ -481,6 +776,27 @@ public class UserProcess {
      * </tt></td></tr>
      * <tr><td>8</td><td><tt>int  close(int fd);</tt></td></tr>
      * <tr><td>9</td><td><tt>int  unlink(char *name);</tt></td></tr>
+     * <tr><td>10</td><td><tt>char *mmap(int fd, int offset, int length);
+     * </tt></td></tr>
+     * <tr><td>13</td><td><tt>int  munmap(char *address);</tt></td></tr>
+     * <tr><td>14</td><td><tt>void *sbrk(int increment);</tt></td></tr>
+     * <tr><td>15</td><td><tt>int  pipe(int *fds);</tt></td></tr>
+     * <tr><td>16</td><td><tt>int  readv(int fd, struct iovec *iov, int iovcnt);
+     * </tt></td></tr>
+     * <tr><td>17</td><td><tt>int  writev(int fd, struct iovec *iov, int iovcnt);
+     * </tt></td></tr>
+     * <tr><td>18</td><td><tt>int  aio_read(int fd, char *buffer, int size,
+     * int offset);</tt></td></tr>
+     * <tr><td>19</td><td><tt>int  aio_write(int fd, char *buffer, int size,
+     * int offset);</tt></td></tr>
+     * <tr><td>20</td><td><tt>int  aio_wait(int handle);</tt></td></tr>
+     * <tr><td>21</td><td><tt>int  aio_poll(int handle, int *result);</tt></td></tr>
+     * <tr><td>22</td><td><tt>int  ring_setup(struct ring *ring, int entries);
+     * </tt></td></tr>
+     * <tr><td>23</td><td><tt>int  ring_submit();</tt></td></tr>
+     * <tr><td>24</td><td><tt>int  shmget(int key, int size);</tt></td></tr>
+     * <tr><td>25</td><td><tt>void *shmat(int id);</tt></td></tr>
+     * <tr><td>26</td><td><tt>int  shmdt(void *address);</tt></td></tr>
      * </table>
      *
      * @param syscall the syscall number.
@@ -491,6 +807,25 @@ public class UserProcess {
      * @return the value to be returned to the user.
      */
     public int handleSyscall(int syscall, int a0, int a1, int a2, int a3) {
+        stats.countSyscall(syscall);
+
+        SyscallTracer tracer = UserKernel.syscallTracer;
+        long start = tracer == null ? 0 : Machine.timer().getTime();
+        int result = dispatchSyscall(syscall, a0, a1, a2, a3);
+        if (tracer != null)
+            tracer.record(processId, syscall, a0, a1, a2, a3, result,
+                    start, Machine.timer().getTime());
+
+        if (result > 0) {
+            if (syscall == syscallRead || syscall == syscallReadv)
+                stats.bytesRead += result;
+            else if (syscall == syscallWrite || syscall == syscallWritev)
+                stats.bytesWritten += result;
+        }
+        return result;
+    }
+
+    private int dispatchSyscall(int syscall, int a0, int a1, int a2, int a3) {
         switch (syscall) {
             case syscallHalt:
                 return handleHalt();
@@ -512,6 +847,36 @@ public class UserProcess {
                 return handleExec(a0, a1, a2);
             case syscallExit:
                 return handleExit(a0);
+            case syscallMmap:
+                return handleMmap(a0, a1, a2);
+            case syscallMunmap:
+                return handleMunmap(a0);
+            case syscallSbrk:
+                return handleSbrk(a0);
+            case syscallPipe:
+                return handlePipe(a0);
+            case syscallReadv:
+                return handleReadvOrWritev(a0, a1, a2, false);
+            case syscallWritev:
+                return handleReadvOrWritev(a0, a1, a2, true);
+            case syscallAioRead:
+                return handleAsyncIO(a0, a1, a2, a3, false);
+            case syscallAioWrite:
+                return handleAsyncIO(a0, a1, a2, a3, true);
+            case syscallAioWait:
+                return handleAioWait(a0);
+            case syscallAioPoll:
+                return handleAioPoll(a0, a1);
+            case syscallRingSetup:
+                return handleRingSetup(a0, a1);
+            case syscallRingSubmit:
+                return handleRingSubmit();
+            case syscallShmget:
+                return handleShmget(a0, a1);
+            case syscallShmat:
+                return handleShmat(a0);
+            case syscallShmdt:
+                return handleShmdt(a0);
             default:
                 Lib.debug(dbgProcess, "Unknown syscall " + syscall);
                 Lib.assertNotReached("Unknown system call!");
@@ -542,6 +907,15 @@ public class UserProcess {
                 processor.advancePC();
                 break;
 
+            case Processor.exceptionPageFault:
+                int vpn = Processor.pageFromAddress(
+                        processor.readRegister(Processor.regBadVAddr));
+                if (!handlePageFault(vpn)) {
+                    Lib.debug(dbgProcess, "Unhandled page fault at vpn " + vpn);
+                    handleExit(UNHANDLED_EXCEPTION);
+                }
+                break;
+
             default:
                 Lib.debug(dbgProcess, "Unexpected exception: " +
                         Processor.exceptionNames[cause]);
@@ -559,37 +933,134 @@ public class UserProcess {
         if (fileName == null)
             return -1;
 
-        int fileListIndex = -1, i = 0;
-        for (; i < MAX_FILE; ++i)
-            if (fileList[i] == null)
-                break;
-        if (i == MAX_FILE)
-            return -1;
+        return openOrCreate(fileName, isCreate);
+    }
 
-        // Now i should be the index in fileList
-        if (!UserKernel.fileManager.open(fileName))    // Checking whether the file should be unlinked
+    private int openOrCreate(String fileName, boolean isCreate) {
+        int i = allocateFileDescriptor();
+        if (i == -1)
             return -1;
 
-        OpenFile openFile = ThreadedKernel.fileSystem.open(fileName, isCreate);
-        if (openFile == null)
+        // Now i should be the index in fileList
+        OpenFile openFile = openNamedFile(fileName, isCreate);
+        if (openFile == null) {    // missing, or waiting to be unlinked
+            releaseFileDescriptor(i);
             return -1;
+        }
 
         fileList[i] = openFile;
         return i;
     }
 
+    /**
+     * Open a file for <tt>creat()</tt> or <tt>open()</tt>, without giving it
+     * a descriptor.
+     *
+     * @return the open file, or <tt>null</tt> if it could not be opened.
+     */
+    private OpenFile openNamedFile(String fileName, boolean isCreate) {
+        OpenFile openFile;
+        if (!isCreate && fileName.startsWith(PROC_PREFIX))
+            openFile = openStatsFile(fileName);
+        else
+            openFile = UserKernel.fileManager.open(fileName, isCreate);
+        if (openFile != null && isCreate)
+            invalidateExecutable(fileName);
+
+        return openFile;
+    }
+
+    /**
+     * Open <tt>proc.<i>pid</i></tt>: a read-only snapshot of the statistics
+     * report of the process with that ID. Names that do not end in a number
+     * are opened as ordinary files.
+     */
+    private OpenFile openStatsFile(String fileName) {
+        int pid;
+        try {
+            pid = Integer.parseInt(fileName.substring(PROC_PREFIX.length()));
+        } catch (NumberFormatException e) {
+            return UserKernel.fileManager.open(fileName, false);
+        }
+
+        UserProcess process = UserKernel.processes.get(pid);
+        if (process == null)
+            return null;
+        return new ArrayFile(process.statsReport().getBytes());
+    }
+
+    /**
+     * Claim the lowest unused file descriptor.
+     *
+     * @return the file descriptor, or -1 if all are in use.
+     */
+    private int allocateFileDescriptor() {
+        for (int w = 0; w < fileBitmap.length; w++) {
+            long free = ~fileBitmap[w];
+            if (free != 0) {
+                int fd = (w << 6) + Long.numberOfTrailingZeros(free);
+                if (fd >= MAX_FILE)
+                    break;
+                fileBitmap[w] |= 1L << fd;
+                return fd;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Return the number of file descriptors not in use.
+     */
+    private int countFreeFileDescriptors() {
+        int used = 0;
+        for (int w = 0; w < fileBitmap.length; w++)
+            used += Long.bitCount(fileBitmap[w]);
+        return MAX_FILE - used;
+    }
+
+    /**
+     * Return a file descriptor claimed by <tt>allocateFileDescriptor()</tt>.
+     */
+    private void releaseFileDescriptor(int fd) {
+        fileBitmap[fd >> 6] &= ~(1L << fd);
+    }
+
+    private int handlePipe(int a0) {
+        if (a0 < 0)
+            return -1;
+
+        int readFd = allocateFileDescriptor();
+        if (readFd == -1)
+            return -1;
+        int writeFd = allocateFileDescriptor();
+        if (writeFd == -1) {
+            releaseFileDescriptor(readFd);
+            return -1;
+        }
+
+        byte[] fds = new byte[8];
+        Lib.bytesFromInt(fds, 0, readFd);
+        Lib.bytesFromInt(fds, 4, writeFd);
+        if (writeVirtualMemory(a0, fds) != fds.length) {
+            releaseFileDescriptor(readFd);
+            releaseFileDescriptor(writeFd);
+            return -1;
+        }
+
+        Pipe pipe = new Pipe(PIPE_SIZE);
+        fileList[readFd] = pipe.getReadEnd();
+        fileList[writeFd] = pipe.getWriteEnd();
+        return 0;
+    }
+
     private int handleClose(int a) {
         if (a < 0 || a >= MAX_FILE) return -1;
         OpenFile openFile = fileList[a];
         if (openFile == null) return -1;
-        String fileName = openFile.getName();
         openFile.close();
         fileList[a] = null;
-        //if ((fileName != "SynchConsole") && (!UserKernel.fileManager.close(fileName)))
-        if ((openFile.getFileSystem() != null) && (!UserKernel.fileManager.close(fileName)))    // After discussion with LYP
-            return -1;
-        else
-            return 0;
+        releaseFileDescriptor(a);
+        return 0;
     }
 
     private int handleUnlink(int a) {
@@ -599,10 +1070,16 @@ public class UserProcess {
         String fileName = readVirtualMemoryString(a, 256);
         if (fileName == null)
             return -1;
+
+        return unlink(fileName);
+    }
+
+    private int unlink(String fileName) {
         if (!UserKernel.fileManager.unlink(fileName))
             return -1;
 
-        else return 0;
+        invalidateExecutable(fileName);
+        return 0;
     }
 
     private int handleRead(int a0, int a1, int a2) {
@@ -612,6 +1089,8 @@ public class UserProcess {
         OpenFile openFile = fileList[a0];
         if (openFile == null)
             return -1;
+        if (openFile instanceof Pipe.End)
+            return ((Pipe.End) openFile).transfer(this, a1, a2);
 
         byte[] buffer = new byte[BUFFER_SIZE];
         int readCount = 0, readLength, readLengthActual, writeLengthActual;
@@ -641,6 +1120,10 @@ public class UserProcess {
         OpenFile openFile = fileList[a0];
         if (openFile == null)
             return -1;
+        if (openFile instanceof Pipe.End)
+            return ((Pipe.End) openFile).transfer(this, a1, a2);
+        if (openFile.getFileSystem() != null)
+            invalidateExecutable(openFile.getName());
 
         byte[] buffer = new byte[BUFFER_SIZE];
         int writeCount = 0, writeLengthActual, readLength, readLengthActual;
@@ -661,6 +1144,275 @@ public class UserProcess {
         return writeCount;
     }
 
+    /**
+     * Make sure a file that is being modified is not executed from a stale
+     * cached image. Only files that <tt>exec()</tt> accepts are tracked.
+     */
+    private void invalidateExecutable(String fileName) {
+        if (!fileName.toLowerCase().endsWith(".coff"))
+            return;
+
+        UserKernel.coffCache.invalidate(fileName);
+    }
+
+    /**
+     * Handle readv() and writev(). Small vectors on ordinary files are moved
+     * with a single <tt>OpenFile</tt> operation; large ones, and pipes, are
+     * moved one segment at a time.
+     */
+    private int handleReadvOrWritev(int a0, int a1, int a2, boolean isWrite) {
+        if (a0 < 0 || a0 >= MAX_FILE || a1 < 0 || a2 < 0 || a2 > MAX_IOVEC)
+            return -1;
+
+        OpenFile openFile = fileList[a0];
+        if (openFile == null)
+            return -1;
+
+        byte[] iov = new byte[a2 * IOVEC_SIZE];
+        if (readVirtualMemory(a1, iov) != iov.length)
+            return -1;
+
+        int[] bases = new int[a2], lengths = new int[a2];
+        int total = 0;
+        for (int i = 0; i < a2; i++) {
+            bases[i] = Lib.bytesToInt(iov, i * IOVEC_SIZE);
+            lengths[i] = Lib.bytesToInt(iov, i * IOVEC_SIZE + 4);
+            if (bases[i] < 0 || lengths[i] < 0 || total + lengths[i] < 0)
+                return -1;
+            total += lengths[i];
+        }
+
+        if (total > MAX_VECTOR_BYTES || openFile instanceof Pipe.End) {
+            int count = 0;
+            for (int i = 0; i < a2; i++) {
+                int amount = isWrite ? handleWrite(a0, bases[i], lengths[i])
+                        : handleRead(a0, bases[i], lengths[i]);
+                if (amount == -1)
+                    return count > 0 ? count : -1;
+                count += amount;
+                if (amount < lengths[i])
+                    break;
+            }
+            return count;
+        }
+
+        byte[] buffer = new byte[total];
+        if (isWrite) {
+            if (openFile.getFileSystem() != null)
+                invalidateExecutable(openFile.getName());
+
+            for (int i = 0, offset = 0; i < a2; offset += lengths[i++]) {
+                if (readVirtualMemory(bases[i], buffer, offset, lengths[i]) != lengths[i])
+                    return -1;
+            }
+            return openFile.write(buffer, 0, total) == total ? total : -1;
+        } else {
+            int amount = openFile.read(buffer, 0, total);
+            if (amount == -1)
+                return -1;
+
+            for (int i = 0, offset = 0; i < a2 && offset < amount; offset += lengths[i++]) {
+                int length = Math.min(lengths[i], amount - offset);
+                if (writeVirtualMemory(bases[i], buffer, offset, length) != length)
+                    return -1;
+            }
+            return amount;
+        }
+    }
+
+    /**
+     * Handle aio_read() and aio_write(): queue the transfer on the kernel I/O
+     * workers and return a handle for collecting its result. Data to be
+     * written is copied out of user memory right away, so the buffer may be
+     * reused as soon as the call returns.
+     * <p>
+     * Only files of a file system are accepted. A pipe or console transfer
+     * can block for as long as another process pleases, and would hold one
+     * of the few shared workers all that time, starving everyone's transfers
+     * and read-ahead.
+     */
+    private int handleAsyncIO(int a0, int a1, int a2, int a3, boolean isWrite) {
+        if (a0 < 0 || a0 >= MAX_FILE || a1 < 0 || a2 < 0 || a2 > MAX_ASYNC_BYTES)
+            return -1;
+
+        OpenFile openFile = fileList[a0];
+        if (openFile == null || openFile.getFileSystem() == null)
+            return -1;
+
+        int handle = 0;
+        while (handle < MAX_ASYNC && asyncRequests[handle] != null)
+            handle++;
+        if (handle == MAX_ASYNC)
+            return -1;
+
+        AsyncRequest request = new AsyncRequest(openFile, isWrite, a1, a2, a3);
+        if (isWrite) {
+            if (readVirtualMemory(a1, request.buffer) != a2)
+                return -1;
+            invalidateExecutable(openFile.getName());
+        }
+
+        asyncRequests[handle] = request;
+        UserKernel.ioWorkers.submit(request);
+        return handle;
+    }
+
+    private int handleAioWait(int a0) {
+        if (a0 < 0 || a0 >= MAX_ASYNC || asyncRequests[a0] == null)
+            return -1;
+
+        AsyncRequest request = asyncRequests[a0];
+        request.complete.P();
+        asyncRequests[a0] = null;
+        return request.result;
+    }
+
+    private int handleAioPoll(int a0, int a1) {
+        if (a0 < 0 || a0 >= MAX_ASYNC || asyncRequests[a0] == null || a1 < 0)
+            return -1;
+
+        AsyncRequest request = asyncRequests[a0];
+        if (!request.done)
+            return 0;
+
+        if (writeVirtualMemory(a1, Lib.bytesFromInt(request.result)) != 4)
+            return -1;
+        request.complete.P();
+        asyncRequests[a0] = null;
+        return 1;
+    }
+
+    private int handleRingSetup(int a0, int a1) {
+        if (a1 == 0) {
+            ringEntries = 0;
+            return 0;
+        }
+        if (a0 < 0 || a1 < 0 || a1 > MAX_RING_ENTRIES || (a1 & (a1 - 1)) != 0)
+            return -1;
+
+        // the whole ring must be mapped
+        byte[] ring = new byte[RING_HEADER_SIZE + a1 * (RING_SQE_SIZE + RING_CQE_SIZE)];
+        if (readVirtualMemory(a0, ring) != ring.length)
+            return -1;
+
+        ringAddress = a0;
+        ringEntries = a1;
+        return 0;
+    }
+
+    /**
+     * Handle ring_submit(): run every request queued in the submission
+     * queue of the registered ring, as long as there is room in the
+     * completion queue for its result. The queues are copied in and out of
+     * user memory once per call, not once per request.
+     *
+     * <p>
+     * A run of consecutive creat, open and unlink requests is handed to the
+     * kernel I/O workers, so that their file system latencies overlap. The
+     * results are still posted in submission order.
+     */
+    private int handleRingSubmit() {
+        if (ringEntries == 0)
+            return -1;
+
+        int sqAddress = ringAddress + RING_HEADER_SIZE;
+        int cqAddress = sqAddress + ringEntries * RING_SQE_SIZE;
+
+        byte[] header = new byte[RING_HEADER_SIZE];
+        byte[] sq = new byte[ringEntries * RING_SQE_SIZE];
+        byte[] cq = new byte[ringEntries * RING_CQE_SIZE];
+        if (readVirtualMemory(ringAddress, header) != header.length ||
+                readVirtualMemory(sqAddress, sq) != sq.length ||
+                readVirtualMemory(cqAddress, cq) != cq.length)
+            return -1;
+
+        int sqHead = Lib.bytesToInt(header, 0), sqTail = Lib.bytesToInt(header, 4);
+        int cqHead = Lib.bytesToInt(header, 8), cqTail = Lib.bytesToInt(header, 12);
+        int mask = ringEntries - 1, count = 0;
+
+        while (sqHead != sqTail && cqTail - cqHead < ringEntries) {
+            // no descriptor is freed during a run, so cut it where the opens
+            // could run out of them
+            int run = 0, opens = 0, freeDescriptors = countFreeFileDescriptors();
+            while (sqHead + run != sqTail && cqTail + run - cqHead < ringEntries) {
+                int opcode = Lib.bytesToInt(sq, ((sqHead + run) & mask) * RING_SQE_SIZE);
+                if (!isNameOperation(opcode))
+                    break;
+                if (opcode != syscallUnlink && opens++ == freeDescriptors)
+                    break;
+                run++;
+            }
+
+            if (run > 1) {
+                NameOperation[] operations = new NameOperation[run];
+                HashMap<String, NameRequest> requests = new HashMap<String, NameRequest>();
+                for (int i = 0; i < run; i++) {
+                    int sqe = ((sqHead + i) & mask) * RING_SQE_SIZE;
+                    operations[i] = new NameOperation(Lib.bytesToInt(sq, sqe),
+                            Lib.bytesToInt(sq, sqe + 4));
+                    String fileName = operations[i].fileName;
+                    if (fileName == null)
+                        continue;
+
+                    NameRequest request = requests.get(fileName);
+                    if (request == null) {
+                        request = new NameRequest();
+                        requests.put(fileName, request);
+                    }
+                    request.operations.add(operations[i]);
+                }
+
+                for (NameRequest request : requests.values())
+                    UserKernel.ioWorkers.submit(request);
+                for (NameRequest request : requests.values())
+                    request.complete.P();
+
+                for (int i = 0; i < run; i++) {
+                    int sqe = (sqHead & mask) * RING_SQE_SIZE;
+                    int cqe = (cqTail & mask) * RING_CQE_SIZE;
+                    System.arraycopy(sq, sqe + 16, cq, cqe, 4);
+                    Lib.bytesFromInt(cq, cqe + 4, operations[i].finish());
+
+                    sqHead++;
+                    cqTail++;
+                    count++;
+                }
+                continue;
+            }
+
+            int sqe = (sqHead & mask) * RING_SQE_SIZE;
+            int opcode = Lib.bytesToInt(sq, sqe);
+            int result = -1;
+            switch (opcode) {
+                case syscallCreate:
+                case syscallOpen:
+                case syscallRead:
+                case syscallWrite:
+                case syscallClose:
+                case syscallUnlink:
+                case syscallReadv:
+                case syscallWritev:
+                    result = handleSyscall(opcode, Lib.bytesToInt(sq, sqe + 4),
+                            Lib.bytesToInt(sq, sqe + 8), Lib.bytesToInt(sq, sqe + 12), 0);
+            }
+
+            int cqe = (cqTail & mask) * RING_CQE_SIZE;
+            System.arraycopy(sq, sqe + 16, cq, cqe, 4);
+            Lib.bytesFromInt(cq, cqe + 4, result);
+
+            sqHead++;
+            cqTail++;
+            count++;
+        }
+
+        if (writeVirtualMemory(cqAddress, cq) != cq.length ||
+                writeVirtualMemory(ringAddress, Lib.bytesFromInt(sqHead)) != 4 ||
+                writeVirtualMemory(ringAddress + 12, Lib.bytesFromInt(cqTail)) != 4)
+            return -1;
+
+        return count;
+    }
+
     private int handleExec(int a0, int a1, int a2) {
         if (a0 < 0 || a1 < 0 || a2 < 0)
             return -1;
@@ -668,32 +1420,274 @@ public class UserProcess {
         if (fileName == null || !fileName.toLowerCase().endsWith(".coff"))
             return -1;
 
+        // argv has to fit in the child's argument page anyway
+        if (a1 > pageSize / 4)
+            return -1;
+
+        // copy in the whole argv array at once
+        if (argvBuffer == null)
+            argvBuffer = new byte[pageSize];
+        if (readVirtualMemory(a2, argvBuffer, 0, a1 * 4) != a1 * 4)
+            return -1;
+
         String args[] = new String[a1];
-        byte[] bytes = new byte[4];
-        int byteRead, argsAddress;
         for (int i = 0; i < a1; ++i) {
-            byteRead = readVirtualMemory(a2 + (i << 2), bytes);
-            if (byteRead != 4)
-                return -1;
-
-            argsAddress = Lib.bytesToInt(bytes, 0);
-            args[i] = readVirtualMemoryString(argsAddress, 256);
+            args[i] = readVirtualMemoryString(Lib.bytesToInt(argvBuffer, i * 4), 256);
             if (args[i] == null)
                 return -1;
         }
 
         UserProcess child = UserProcess.newUserProcess();
         child.parentProcess = this;
-        if (child.execute(fileName, args)) {
-            children.add(child);
+        child.inheritDescriptors(this);
+        children.add(child);
+        if (child.execute(fileName, args))
             return child.processId;
-        } else
+
+        // let go of the pipe ends, so their other ends still see the close
+        child.closeDescriptors();
+        children.remove(child);
+        return -1;
+    }
+
+    /**
+     * Replace the descriptors of a new process with copies of its parent's,
+     * at the same numbers, so that its standard input and output are whatever
+     * the parent's are, pipes included. Since <tt>pipe()</tt> takes the lowest
+     * free descriptors, a parent can close descriptor 0 or 1 first to give a
+     * child a pipe end as its standard input or output.
+     */
+    private void inheritDescriptors(UserProcess parent) {
+        closeDescriptors();
+        for (int fd = 0; fd < MAX_FILE; fd++) {
+            if (parent.fileList[fd] == null)
+                continue;
+
+            OpenFile copy = duplicateFile(parent.fileList[fd]);
+            if (copy != null) {
+                fileList[fd] = copy;
+                fileBitmap[fd >> 6] |= 1L << fd;
+            }
+        }
+    }
+
+    /**
+     * Return a new descriptor on the same file as another, or <tt>null</tt>
+     * if the file cannot be shared. Pipe ends are shared outright; other
+     * files get a descriptor of their own that starts at the same position.
+     */
+    private static OpenFile duplicateFile(OpenFile file) {
+        if (file instanceof Pipe.End)
+            return ((Pipe.End) file).duplicate();
+
+        if (file instanceof ArrayFile) {
+            byte[] contents = new byte[file.length()];
+            file.read(0, contents, 0, contents.length);
+            ArrayFile copy = new ArrayFile(contents);
+            copy.seek(file.tell());
+            return copy;
+        }
+
+        OpenFile copy = UserKernel.console.duplicate(file);
+        if (copy == null)
+            copy = UserKernel.fileManager.duplicate(file);
+        return copy;
+    }
+
+    private void closeDescriptors() {
+        for (int fd = 0; fd < MAX_FILE; fd++) {
+            if (fileList[fd] != null)
+                handleClose(fd);
+        }
+    }
+
+    private int handleMmap(int a0, int a1, int a2) {
+        if (a0 < 0 || a0 >= MAX_FILE || a1 < 0 || a1 % pageSize != 0 || a2 <= 0)
+            return -1;
+
+        OpenFile openFile = fileList[a0];
+        if (openFile == null || openFile.getFileSystem() == null)
+            return -1;
+
+        // the mapping keeps its own handle, so it outlives the descriptor
+        OpenFile file = UserKernel.fileManager.open(openFile.getName(), false);
+        if (file == null)
             return -1;
+
+        MappedRegion region = new MappedRegion();
+        region.file = file;
+        region.offset = a1;
+        region.length = a2;
+        region.numPages = (int) (((long) a2 + pageSize - 1) / pageSize);
+        region.firstVPN = reservePages(region.numPages);
+        if (region.firstVPN == -1) {
+            file.close();
+            return -1;
+        }
+        mappedRegions.add(region);
+
+        return region.firstVPN * pageSize;
+    }
+
+    private int handleShmget(int a0, int a1) {
+        if (a1 <= 0 || a1 > MAX_SHM_PAGES * pageSize)
+            return -1;
+
+        UserKernel.pageLock.acquire();
+        int id = UserKernel.sharedMemory.get(a0, Lib.divRoundUp(a1, pageSize));
+        if (id != -1)
+            sharedSegmentIds.add(id);
+        UserKernel.pageLock.release();
+        return id;
+    }
+
+    private int handleShmat(int a0) {
+        UserKernel.pageLock.acquire();
+        int[] ppns = UserKernel.sharedMemory.attach(a0);
+        UserKernel.pageLock.release();
+        if (ppns == null)
+            return -1;
+
+        SharedAttachment attachment = new SharedAttachment();
+        attachment.id = a0;
+        attachment.numPages = ppns.length;
+        attachment.firstVPN = reservePages(ppns.length);
+        if (attachment.firstVPN == -1) {
+            UserKernel.pageLock.acquire();
+            UserKernel.sharedMemory.detach(a0);
+            UserKernel.pageLock.release();
+            return -1;
+        }
+        for (int i = 0; i < ppns.length; i++) {
+            TranslationEntry entry = pageTable[attachment.firstVPN + i];
+            entry.ppn = ppns[i];
+            entry.valid = true;
+        }
+        sharedAttachments.add(attachment);
+
+        return attachment.firstVPN * pageSize;
+    }
+
+    private int handleShmdt(int a0) {
+        if (a0 < 0 || a0 % pageSize != 0)
+            return -1;
+
+        for (SharedAttachment attachment : sharedAttachments) {
+            if (attachment.firstVPN == a0 / pageSize) {
+                detach(attachment);
+                sharedAttachments.remove(attachment);
+                return 0;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Unmap a shared memory segment and drop this process's reference to its
+     * pages. The caller must hold <tt>UserKernel.pageLock</tt>.
+     */
+    private void detachLocked(SharedAttachment attachment) {
+        for (int i = 0; i < attachment.numPages; i++)
+            pageTable[attachment.firstVPN + i] = null;
+        UserKernel.sharedMemory.detach(attachment.id);
+    }
+
+    private void detach(SharedAttachment attachment) {
+        UserKernel.pageLock.acquire();
+        detachLocked(attachment);
+        UserKernel.pageLock.release();
+    }
+
+    private int handleMunmap(int a0) {
+        if (a0 < 0 || a0 % pageSize != 0)
+            return -1;
+
+        MappedRegion region = findRegion(a0 / pageSize);
+        if (region == null || region.firstVPN != a0 / pageSize)
+            return -1;
+
+        unmap(region);
+        return 0;
+    }
+
+    /**
+     * Write the dirty pages of a mapped region back to its file, and release
+     * its pages and file.
+     */
+    private void unmap(MappedRegion region) {
+        byte[] memory = Machine.processor().getMemory();
+        int fileLength = region.file.length();
+        boolean written = false;
+
+        for (int i = 0; i < region.numPages; i++) {
+            TranslationEntry entry = pageTable[region.firstVPN + i];
+            if (entry.valid && entry.dirty) {
+                int position = region.offset + i * pageSize;
+                int length = Math.min(Math.min(pageSize, region.length - i * pageSize),
+                        fileLength - position);
+                if (length > 0) {
+                    region.file.write(position, memory, entry.ppn * pageSize, length);
+                    written = true;
+                }
+            }
+        }
+
+        if (written)
+            invalidateExecutable(region.file.getName());
+
+        UserKernel.pageLock.acquire();
+        for (int i = 0; i < region.numPages; i++) {
+            TranslationEntry entry = pageTable[region.firstVPN + i];
+            if (entry.valid)
+                UserKernel.freePhysicalPages.addLast(entry.ppn);
+            pageTable[region.firstVPN + i] = null;
+        }
+        UserKernel.pageLock.release();
+
+        region.file.close();
+        mappedRegions.remove(region);
+    }
+
+    private int handleSbrk(int a0) {
+        int oldBreak = heapBreak;
+        long newBreak = (long) heapBreak + a0;
+        if (newBreak < heapStartPage * pageSize ||
+                newBreak > (heapStartPage + heapPages) * pageSize)
+            return -1;
+
+        int oldEndPage = Lib.divRoundUp(oldBreak, pageSize),
+                newEndPage = Lib.divRoundUp((int) newBreak, pageSize);
+
+        // growing only makes the pages faultable; they are backed on first touch
+        for (int vpn = oldEndPage; vpn < newEndPage; vpn++)
+            pageTable[vpn] = new TranslationEntry(vpn, -1, false, false, false, false);
+
+        UserKernel.pageLock.acquire();
+        for (int vpn = newEndPage; vpn < oldEndPage; vpn++) {
+            if (pageTable[vpn].valid)
+                UserKernel.freePhysicalPages.addLast(pageTable[vpn].ppn);
+            pageTable[vpn] = null;
+        }
+        UserKernel.pageLock.release();
+
+        heapBreak = (int) newBreak;
+        return oldBreak;
     }
 
     private int handleExit(int a) {
         exitStatus = a;
+        Lib.debug(dbgStats, statsReport());
+
+        // the workers may still be writing into this address space
+        for (int i = 0; i < MAX_ASYNC; i++) {
+            if (asyncRequests[i] != null) {
+                asyncRequests[i].complete.P();
+                asyncRequests[i] = null;
+            }
+        }
 
+        while (mappedRegions.size() > 0)
+            unmap(mappedRegions.getFirst());
         unloadSections();
         for (int i = 0; i < MAX_FILE; ++i) {    // should i start from 2 instead?
             if (fileList[i] != null) {
@@ -701,8 +1695,19 @@ public class UserProcess {
                 fileList[i] = null;    // this line seems to be redundant
             }
         }
-        while (children.size() > 0)
-            children.removeFirst().parentProcess = null;
+
+        // nobody can join our children any more; forget those that are done
+        boolean intStatus = Machine.interrupt().disable();
+        for (UserProcess child : children) {
+            child.parentProcess = null;
+            if (child.finished)
+                UserKernel.processes.remove(child.processId);
+        }
+        children.clear();
+        finished = true;
+        if (parentProcess == null)
+            UserKernel.processes.remove(processId);
+        Machine.interrupt().restore(intStatus);
 
         if (processId == ROOT_PROCESS)
             Kernel.kernel.terminate();
@@ -716,18 +1721,15 @@ public class UserProcess {
         if (a0 < 0 || a1 < 0)
             return -1;
 
-        UserProcess child = null;
-        int childrenNum = children.size(), i = 0;
-        for (; i < childrenNum; ++i) {
-            child = children.get(i);
-            if (child.processId == a0)
-                break;
-        }
-        if (i == childrenNum) return -1;
+        UserProcess child = UserKernel.processes.get(a0);
+        if (child == null || child.parentProcess != this)
+            return -1;
         // now child is the child process
         children.remove(child);
         if (child.thread != null)
             child.thread.join();
+        child.parentProcess = null;
+        UserKernel.processes.remove(child.processId);
 
         int childExitStatus = child.exitStatus;
         if (childExitStatus == UNHANDLED_EXCEPTION)
@@ -739,4 +1741,151 @@ public class UserProcess {
             return 1;
         return 0;
     }
+
+    private static boolean isNameOperation(int opcode) {
+        return opcode == syscallCreate || opcode == syscallOpen
+                || opcode == syscallUnlink;
+    }
+
+    /**
+     * A creat, open or unlink entry of a ring. The file name is read from
+     * user memory when the operation is made.
+     */
+    private class NameOperation {
+        NameOperation(int opcode, int address) {
+            this.opcode = opcode;
+            this.address = address;
+            if (address >= 0)
+                fileName = readVirtualMemoryString(address, 256);
+            start = end = Machine.timer().getTime();
+        }
+
+        /**
+         * Carry out the operation on an I/O worker. Opened files are not
+         * given descriptors yet.
+         */
+        void run() {
+            start = Machine.timer().getTime();
+            if (opcode == syscallUnlink)
+                result = unlink(fileName);
+            else
+                file = openNamedFile(fileName, opcode == syscallCreate);
+            end = Machine.timer().getTime();
+        }
+
+        /**
+         * Give an opened file its descriptor and account for the operation,
+         * in the submitting thread.
+         *
+         * @return the result of the operation.
+         */
+        int finish() {
+            if (file != null) {
+                // the run was cut to the free descriptors, so there is one
+                result = allocateFileDescriptor();
+                Lib.assertTrue(result != -1);
+                fileList[result] = file;
+            }
+
+            stats.countSyscall(opcode);
+            if (UserKernel.syscallTracer != null)
+                UserKernel.syscallTracer.record(processId, opcode, address,
+                        0, 0, 0, result, start, end);
+            return result;
+        }
+
+        int opcode, address;
+        String fileName = null;
+        OpenFile file = null;
+
+        int result = -1;
+        long start, end;
+    }
+
+    /**
+     * The operations of a ring submission on one file name, run one after
+     * another on an I/O worker. Operations on different names run on
+     * different workers at the same time. Descriptors are only handed out
+     * once every worker is done, in submission order, so each operation sees
+     * the effect of those before it on its name and gets the descriptor it
+     * would have got from a sequential run.
+     */
+    private class NameRequest implements Runnable {
+        public void run() {
+            for (NameOperation operation : operations)
+                operation.run();
+
+            complete.V();
+        }
+
+        LinkedList<NameOperation> operations = new LinkedList<NameOperation>();
+        Semaphore complete = new Semaphore(0);
+    }
+
+    /**
+     * A transfer queued by <tt>aio_read()</tt> or <tt>aio_write()</tt>.
+     */
+    private class AsyncRequest implements Runnable {
+        AsyncRequest(OpenFile file, boolean isWrite, int vaddr, int length,
+                     int position) {
+            this.file = file;
+            this.isWrite = isWrite;
+            this.vaddr = vaddr;
+            this.position = position;
+            this.buffer = new byte[length];
+        }
+
+        /**
+         * Carry out the transfer on an I/O worker. A negative position means
+         * the current file pointer.
+         */
+        public void run() {
+            int length = buffer.length;
+            if (isWrite) {
+                result = position < 0 ? file.write(buffer, 0, length)
+                        : file.write(position, buffer, 0, length);
+            } else {
+                result = position < 0 ? file.read(buffer, 0, length)
+                        : file.read(position, buffer, 0, length);
+                if (result > 0 && writeVirtualMemory(vaddr, buffer, 0, result) != result)
+                    result = -1;
+            }
+
+            if (result > 0) {
+                if (isWrite)
+                    stats.bytesWritten += result;
+                else
+                    stats.bytesRead += result;
+            }
+
+            done = true;
+            complete.V();
+        }
+
+        OpenFile file;
+        boolean isWrite;
+        int vaddr, position;
+        byte[] buffer;
+
+        int result = -1;
+        boolean done = false;
+        Semaphore complete = new Semaphore(0);
+    }
+
+    /**
+     * A range of virtual pages backed by part of a file.
+     */
+    private static class MappedRegion {
+        int firstVPN, numPages;
+        OpenFile file;
+        int offset, length;
+    }
+
+    /**
+     * A shared memory segment attached to this process.
+     */
+    private static class SharedAttachment {
+        int id;
+        int firstVPN, numPages;
+    }
 }